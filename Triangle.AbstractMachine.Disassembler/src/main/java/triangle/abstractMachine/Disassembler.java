@@ -18,10 +18,8 @@
 
 package triangle.abstractMachine;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 
 /**
  Disassembles the TAM code in the given file, and displays the instructions on
@@ -45,6 +43,9 @@ public class Disassembler {
 
     static int CT;
 
+    // the code store, from CB up to CT, sized to hold the program
+    static Instruction[] code = new Instruction[0];
+
     public static void main(String[] args) {
         System.out.println("********** TAM Disassembler (Sun Version 2.1) **********");
 
@@ -59,27 +60,16 @@ public class Disassembler {
     }
 
     /**
-     Loads the TAM object program into code store from the named file.
+     Loads the TAM object program, in either object format, into code store from the named file.
 
      @param objectName the name of the file containing the program.
      */
     static void loadObjectProgram(String objectName) {
 
-        var finished = false;
-
-        try (var objectFile = new FileInputStream(objectName)) {
-            var objectStream = new DataInputStream(objectFile);
-            var addr = Machine.CB;
-            while (!finished) {
-                Machine.code[addr] = Instruction.read(objectStream);
-                if (Machine.code[addr] == null) {
-                    finished = true;
-                } else {
-                    addr = addr + 1;
-                }
-            }
-            CT = addr;
-        } catch (FileNotFoundException s) {
+        try {
+            code = ObjectFormat.readInstructions(ObjectFormat.map(objectName));
+            CT = Machine.CB + code.length;
+        } catch (NoSuchFileException s) {
             CT = Machine.CB;
             System.err.println("Error opening object file: " + s);
         } catch (IOException s) {
@@ -284,6 +274,8 @@ public class Disassembler {
 
             case CALL:
                 System.out.print("CALL  ");
+                // operands are written relative to their registers, as in the object program, so a primitive routine
+                // is named by its displacement from PB wherever the machine places PB
                 if (instr.register == Register.PB) {
                     blankN();
                     writePrimitive(instr.operand);
@@ -348,7 +340,7 @@ public class Disassembler {
     private static void disassembleProgram() {
         for (int addr = Machine.CB; addr < CT; addr++) {
             System.out.print(addr + ":  ");
-            writeInstruction(Machine.code[addr]);
+            writeInstruction(code[addr - Machine.CB]);
             System.out.println();
         }
     }
@@ -0,0 +1,261 @@
+/*
+ * @(#)BatchRunner.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import com.sampullara.cli.Args;
+import com.sampullara.cli.Argument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ Runs many TAM object programs in one JVM, each on its own {@link TamVm}, on a pool of threads.
+ <p>
+ Each object program named on the command line is run once, or once for each file in the directory given by -inputDir,
+ with that file as its input. The output of each run is captured in memory and written to the directory given by
+ -outputDir, and a line giving the status and time of each run is written to the console, in the order the runs were
+ named.
+ <p>
+ A run is carried out in slices of -sliceSize instructions. After each slice the run goes to the back of the queue of
+ the pool, so that many runs share a few threads in turn and a long run does not hold up the others. A run is stopped
+ once it has taken longer than -timeout milliseconds, which is checked between slices, or once it has executed
+ -maxInstructions instructions.
+ <p>
+ The pool holds one platform thread per processor by default. TAM programs are bound by the processor, so more threads
+ than processors would only take turns, and the interpreter modules target Java 17, which has no virtual threads.
+ */
+public final class BatchRunner {
+
+    @Argument(description = "Directory of input files, each of which is given to a run of every program")
+    private static String inputDir;
+
+    @Argument(description = "Directory to write the output of each run into") private static String outputDir;
+
+    @Argument(description = "Number of threads to run programs on") static int threads =
+            Runtime.getRuntime().availableProcessors();
+
+    @Argument(description = "Number of milliseconds after which a run is stopped, or 0 for no limit")
+    private static long timeout;
+
+    @Argument(description = "Number of instructions a run executes before giving up its thread to other runs")
+    static int sliceSize = 1 << 20;
+
+    @Argument(description = "Number of instructions after which a run is stopped, or 0 for no limit")
+    static long maxInstructions;
+
+    @Argument(description = "Number of words of data store reserved for the stack") private static int stackSize = 512;
+
+    @Argument(description = "Number of words of data store reserved for the heap") private static int heapSize = 512;
+
+    @Argument(description = "Verify each program when loading it, and run it without per-instruction checks")
+    static boolean verify;
+
+    // a run of one object program on one input, or on no input when input is null
+    record Run(String objectName, File input) {
+
+        String name() {
+            var programName = new File(objectName).getName();
+            return input == null ? programName : programName + "." + input.getName();
+        }
+
+    }
+
+    // what became of a run
+    record Result(Run run, TamVm.Status status, boolean timedOut, long elapsedNanos, byte[] output) { }
+
+    public static void main(String[] args) throws InterruptedException {
+        var objectNames = Args.parseOrExit(BatchRunner.class, args);
+        if (objectNames.isEmpty()) {
+            System.err.println("No object programs to run.");
+            return;
+        }
+
+        var runs = new ArrayList<Run>();
+        for (var objectName : objectNames) {
+            if (inputDir == null) {
+                runs.add(new Run(objectName, null));
+            } else {
+                var inputs = new File(inputDir).listFiles(File::isFile);
+                if (inputs == null) {
+                    System.err.println("Error reading input directory: " + inputDir);
+                    return;
+                }
+                Arrays.sort(inputs);
+                for (var input : inputs) {
+                    runs.add(new Run(objectName, input));
+                }
+            }
+        }
+
+        var results = runAll(runs);
+
+        int halted = 0, failed = 0, timedOut = 0;
+        for (var result : results) {
+            if (result.timedOut()) {
+                timedOut = timedOut + 1;
+            } else if (result.status() == TamVm.Status.HALTED) {
+                halted = halted + 1;
+            } else {
+                failed = failed + 1;
+            }
+            System.out.println(result.run().name() + ": " + (result.timedOut() ? "TIMED_OUT" : result.status()) + " ("
+                               + result.elapsedNanos() / 1_000_000 + " ms)");
+            if (outputDir != null) {
+                writeOutput(result);
+            }
+        }
+        System.out.println(results.size() + " runs: " + halted + " halted, " + failed + " failed, " + timedOut
+                           + " timed out");
+    }
+
+    static List<Result> runAll(List<Run> runs) throws InterruptedException {
+        // Carries out the given runs on the pool of threads, and returns their results in the same order.
+
+        var pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            var futures = new ArrayList<Future<Result>>();
+            for (var run : runs) {
+                var job = new Job(run, pool);
+                futures.add(job.result);
+                pool.execute(job::start);
+            }
+            var results = new ArrayList<Result>();
+            for (var future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException s) {
+                    throw new IllegalStateException("Run failed unexpectedly", s.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // a run in progress, which is carried out a slice at a time on whichever thread of the pool is free
+    static final class Job {
+
+        final Run run;
+
+        final ExecutorService pool;
+
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        final TamVm vm = new TamVm();
+
+        long startTimeNanos;
+
+        Job(Run run, ExecutorService pool) {
+            this.run = run;
+            this.pool = pool;
+        }
+
+        void start() {
+            // Loads the object program on a machine of its own, and runs its first slice.
+
+            try {
+                vm.setStackSize(stackSize);
+                vm.setHeapSize(heapSize);
+                vm.setVerified(verify);
+                if (maxInstructions > 0) {
+                    vm.setInstructionLimit(maxInstructions);
+                }
+                vm.setOutput(output);
+                vm.setPrompting(false, false);
+                var input = run.input() == null ? new byte[0] : Files.readAllBytes(run.input().toPath());
+                vm.setInput(new ByteArrayInputStream(input));
+                vm.load(run.objectName());
+            } catch (IOException s) {
+                System.err.println("Error loading " + run.name() + ": " + s);
+                result.complete(new Result(run, TamVm.Status.FAILED_IO_ERROR, false, 0, new byte[0]));
+                return;
+            } catch (RuntimeException s) {
+                // a bad setting or a fault in the machine rather than in the program, which runAll reports rather
+                // than waiting for a result that would never come
+                result.completeExceptionally(s);
+                return;
+            }
+
+            if (vm.CT == TamVm.CB) {
+                // as with Interpreter, an empty program is not run
+                result.complete(new Result(run, TamVm.Status.HALTED, false, 0, new byte[0]));
+                return;
+            }
+
+            startTimeNanos = System.nanoTime();
+            slice();
+        }
+
+        void slice() {
+            // Runs one slice of the program, then either finishes the run or puts it back on the queue of the pool.
+
+            TamVm.Status status;
+            try {
+                status = vm.run(sliceSize);
+            } catch (ArrayIndexOutOfBoundsException s) {
+                // the machine does not check addresses, so one outside the data store stops the run here instead,
+                // with the status of an invalid instruction, rather than stopping the whole batch
+                System.err.println("Error running " + run.name() + ": " + s);
+                status = TamVm.Status.FAILED_INVALID_INSTRUCTION;
+            } catch (RuntimeException s) {
+                // as when loading
+                result.completeExceptionally(s);
+                return;
+            }
+            var elapsedNanos = System.nanoTime() - startTimeNanos;
+            var timedOut = status == TamVm.Status.RUNNING && timeout > 0 && elapsedNanos > timeout * 1_000_000;
+            if (status == TamVm.Status.RUNNING && !timedOut) {
+                try {
+                    pool.execute(this::slice);
+                    return;
+                } catch (RejectedExecutionException s) {
+                    // the batch is being abandoned, so the run is left as it is
+                }
+            }
+            result.complete(new Result(run, status, timedOut, elapsedNanos, output.toByteArray()));
+        }
+
+    }
+
+    static void writeOutput(Result result) {
+        // Writes the output captured from a run to a file named after the run in outputDir.
+
+        try {
+            Files.write(new File(outputDir, result.run().name() + ".out").toPath(), result.output());
+        } catch (IOException s) {
+            System.err.println("Error writing output of " + result.run().name() + ": " + s);
+        }
+    }
+
+}
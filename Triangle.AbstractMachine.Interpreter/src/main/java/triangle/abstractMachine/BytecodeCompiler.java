@@ -0,0 +1,1300 @@
+/*
+ * @(#)BytecodeCompiler.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.I2L;
+import static org.objectweb.asm.Opcodes.IADD;
+import static org.objectweb.asm.Opcodes.IALOAD;
+import static org.objectweb.asm.Opcodes.IASTORE;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFGT;
+import static org.objectweb.asm.Opcodes.IFLT;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IF_ICMPEQ;
+import static org.objectweb.asm.Opcodes.IF_ICMPGE;
+import static org.objectweb.asm.Opcodes.IF_ICMPGT;
+import static org.objectweb.asm.Opcodes.IF_ICMPLE;
+import static org.objectweb.asm.Opcodes.IF_ICMPLT;
+import static org.objectweb.asm.Opcodes.IF_ICMPNE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INEG;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.ISUB;
+import static org.objectweb.asm.Opcodes.IUSHR;
+import static org.objectweb.asm.Opcodes.L2I;
+import static org.objectweb.asm.Opcodes.LADD;
+import static org.objectweb.asm.Opcodes.LCMP;
+import static org.objectweb.asm.Opcodes.LCONST_0;
+import static org.objectweb.asm.Opcodes.LDIV;
+import static org.objectweb.asm.Opcodes.LLOAD;
+import static org.objectweb.asm.Opcodes.LMUL;
+import static org.objectweb.asm.Opcodes.LREM;
+import static org.objectweb.asm.Opcodes.LSTORE;
+import static org.objectweb.asm.Opcodes.LSUB;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V17;
+import static triangle.abstractMachine.TamVm.CB;
+import static triangle.abstractMachine.TamVm.PRIMITIVEop;
+import static triangle.abstractMachine.TamVm.absoluteRegister;
+import static triangle.abstractMachine.TamVm.decodedWidth;
+import static triangle.abstractMachine.TamVm.failedOverflow;
+import static triangle.abstractMachine.TamVm.failedZeroDivide;
+import static triangle.abstractMachine.TamVm.halted;
+
+/**
+ Translates the program in a {@link CodeImage} into JVM bytecode for {@link CompiledProgram}: a hidden class, defined in
+ this package so that it can reach the machine state of {@link TamVm} directly, with a static method for each routine
+ of the program, and an instance of it that runs them as {@link CompiledProgram.Code}.
+ <p>
+ The routines are found from the program's code alone. Each starts at CB, at the target of a CALL whose target is fixed,
+ or at an instruction that no routine found so far reaches, such as a routine that is only called by CALLI, and holds
+ every instruction that can be reached from its start without a call. A routine too large for HotSpot to compile is
+ split into several methods, which exit to one another through CompiledProgram.
+ <p>
+ Within a method, the instructions are compiled a block at a time. A block starts wherever control can enter from
+ elsewhere, and ends at the first instruction that may transfer control. It first takes its whole count of instructions
+ from the steps left, and each stretch of it up to a primitive routine that is not compiled inline first checks that
+ the stack has space for all that the stretch pushes, so that within a stretch there are no checks but those of the
+ arithmetic. A block that cannot pass either check, or an instruction that is not compiled, stores the machine state
+ back and returns, with the steps of the instructions not run given back, for the handlers to go on from there.
+ */
+final class BytecodeCompiler {
+
+    // the largest method generated, in bytes of bytecode, below the 8000 that HotSpot will compile, and the number of
+    // generated methods that each dispatcher method dispatches to
+    static final int maxMethodSize = 7000;
+    static final int dispatchGroup = 256;
+    // the most methods generated for a program, beyond which the rest of it is run by the handlers
+    static final int maxMethods    = 4096;
+
+    private static final String className      = "triangle/abstractMachine/CompiledCode";
+    private static final String vmClass        = "triangle/abstractMachine/TamVm";
+    private static final String methodType     = "(Ltriangle/abstractMachine/TamVm;II)I";
+    private static final String dispatchType   = "(Ltriangle/abstractMachine/TamVm;III)I";
+    private static final String returnedToType = "(Ltriangle/abstractMachine/TamVm;IIIII)Z";
+
+    // the local variables of a generated method: its parameters, the registers it keeps, the exit it is taking, and
+    // scratch
+    private static final int vmVar = 0, cpVar = 1, depthVar = 2, stVar = 3, lbVar = 4, stepsVar = 5, dataVar = 7,
+            exitCpVar = 8, refundVar = 9, addrVar = 10, indexVar = 11, calleeVar = 12, resultVar = 13, accVar = 14;
+
+    // how an instruction is compiled: inline and going on to the next instruction, as a call of a primitive routine
+    // that then goes on to the next, as a transfer of control, or not at all
+    private static final int sequential = 0, primitive = 1, jump = 2, jumpIf = 3, call = 4, returns = 5, halt = 6,
+            uncompiled = 7;
+
+    private final CodeImage image;
+    private final int[]     code;
+    private final int       CT;
+
+    // the kind of each instruction, and whether control can enter it other than from the instruction before it
+    private final int[]     kinds;
+    private final boolean[] leaders;
+
+    // the instructions of each generated method, in ascending order, and for each code address the method that can be
+    // entered there, or -1
+    private final List<int[]> bodies = new ArrayList<>();
+    private final int[]       methods;
+
+    BytecodeCompiler(CodeImage image) {
+        this.image = image;
+        this.code = image.decodedCode;
+        this.CT = image.CT;
+        this.kinds = new int[CT];
+        this.leaders = new boolean[CT];
+        this.methods = new int[CT];
+        classifyInstructions();
+        findMethods();
+    }
+
+    int[] methods() {
+        return methods;
+    }
+
+    CompiledProgram.Code compile() {
+        // Generates the class that runs the program, and returns an instance of it.
+
+        var writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(V17, ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object",
+                     new String[] { "triangle/abstractMachine/CompiledProgram$Code" });
+        generateConstructor(writer);
+        generateDispatch(writer);
+        for (var method = 0; method < bodies.size(); method++) {
+            new MethodCompiler(bodies.get(method), false).generate(writer, "m" + method);
+        }
+        writer.visitEnd();
+
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+            var constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+            return (CompiledProgram.Code) constructor.invoke();
+        } catch (Throwable s) {
+            // the class is generated to be valid, so it can only fail to be defined through a fault in this compiler
+            throw new IllegalStateException("Could not define the compiled program", s);
+        }
+    }
+
+    // ANALYSIS
+
+    private int op(int addr) {
+        // Returns the opcode of the instruction at addr, as a primitive routine's PRIMITIVEop plus its displacement, or
+        // as the first instruction of the sequence of a superinstruction, which is compiled one instruction at a time.
+
+        var op = code[addr * decodedWidth];
+        return op >= PRIMITIVEop ? op : TamVm.unfused(op);
+    }
+
+    private int r(int addr) {
+        return code[addr * decodedWidth + 1];
+    }
+
+    private int n(int addr) {
+        return code[addr * decodedWidth + 2];
+    }
+
+    private int d(int addr) {
+        return code[addr * decodedWidth + 3];
+    }
+
+    private boolean isFixed(int r) {
+        // Tests whether the content of register number r, as an instruction's register after decoding, is fixed for
+        // the instruction, and so can be compiled as a constant.
+
+        return r == absoluteRegister || r == Machine.CTr || r == Machine.CPr || r < 0 || r > Machine.CPr;
+    }
+
+    private int target(int addr) {
+        // Returns the address d[r] of the instruction at addr, whose register's content is fixed.
+
+        switch (r(addr)) {
+            case Machine.CTr:
+                return d(addr) + CT;
+            case Machine.CPr:
+                return d(addr) + addr;
+            default:
+                // absolute, or a register number that content() finds holds 0
+                return d(addr);
+        }
+    }
+
+    private int kind(int addr) {
+        var op = op(addr);
+        if (op >= PRIMITIVEop) {
+            return op - PRIMITIVEop <= Machine.gtDisplacement ? sequential : primitive;
+        }
+        switch (op) {
+            case Machine.LOADop:
+            case Machine.LOADAop:
+            case Machine.LOADIop:
+            case Machine.LOADLop:
+            case Machine.STOREop:
+            case Machine.STOREIop:
+            case Machine.PUSHop:
+            case Machine.POPop:
+                return sequential;
+            case Machine.JUMPop:
+                return isFixed(r(addr)) ? jump : uncompiled;
+            case Machine.JUMPIFop:
+                return isFixed(r(addr)) ? jumpIf : uncompiled;
+            case Machine.CALLop:
+                // a call whose target is a routine of the program, rather than a primitive routine or no routine, and
+                // whose static link is a register
+                var n = n(addr);
+                if (isFixed(r(addr)) && target(addr) >= CB && target(addr) < CT && 0 <= n && n <= 15) {
+                    return call;
+                }
+                return uncompiled;
+            case Machine.RETURNop:
+                return returns;
+            case Machine.HALTop:
+                return halt;
+            default:
+                // CALLI and JUMPI, whose targets are taken from the stack, and NOP and invalid instructions
+                return uncompiled;
+        }
+    }
+
+    private void classifyInstructions() {
+        // Finds the kind of each instruction, and the leaders.
+
+        leaders[CB] = true;
+        for (var addr = CB; addr < CT; addr++) {
+            var kind = kind(addr);
+            kinds[addr] = kind;
+            switch (kind) {
+                case jump:
+                case jumpIf:
+                case call:
+                    markLeader(target(addr));
+                    markLeader(addr + 1);
+                    break;
+                case returns:
+                case halt:
+                    markLeader(addr + 1);
+                    break;
+                case uncompiled:
+                    markLeader(addr);
+                    markLeader(addr + 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void markLeader(int addr) {
+        if (addr >= CB && addr < CT) {
+            leaders[addr] = true;
+        }
+    }
+
+    private int[] successors(int addr) {
+        // Returns the addresses that control can go on to from the instruction at addr without a call or return,
+        // including the instruction a call returns to.
+
+        switch (kinds[addr]) {
+            case jump:
+                return new int[] { target(addr) };
+            case jumpIf:
+                return new int[] { target(addr), addr + 1 };
+            case returns:
+            case halt:
+                return new int[0];
+            case uncompiled:
+                var op = op(addr);
+                if (op == Machine.CALLop || op == Machine.CALLIop || op == Machine.JUMPIFop) {
+                    return new int[] { addr + 1 };
+                }
+                return new int[0];
+            default:
+                return new int[] { addr + 1 };
+        }
+    }
+
+    private void findMethods() {
+        // Finds the routines of the program and the methods they are generated as, and fills in methods.
+
+        var starts = new BitSet(CT);
+        starts.set(CB);
+        for (var addr = CB; addr < CT; addr++) {
+            if (kinds[addr] == call) {
+                starts.set(target(addr));
+            }
+        }
+        Arrays.fill(methods, -1);
+        var covered = new BitSet(CT);
+        for (var start = starts.nextSetBit(CB); start >= 0; start = starts.nextSetBit(start + 1)) {
+            addRoutine(start, covered);
+        }
+        for (var start = CB; start < CT; start++) {
+            if (leaders[start] && !covered.get(start)) {
+                addRoutine(start, covered);
+            }
+        }
+    }
+
+    private void addRoutine(int start, BitSet covered) {
+        // Adds the methods of the routine starting at start, marking its instructions as covered.
+
+        var body = new BitSet(CT);
+        var pending = new ArrayList<Integer>();
+        pending.add(start);
+        body.set(start);
+        while (!pending.isEmpty()) {
+            var addr = pending.remove(pending.size() - 1);
+            for (var next : successors(addr)) {
+                if (next >= CB && next < CT && !body.get(next)) {
+                    body.set(next);
+                    pending.add(next);
+                }
+            }
+        }
+        covered.or(body);
+        var first = bodies.size();
+        addMethods(body.stream().toArray());
+        // the routine is entered at its start in its own methods, whichever other methods can be entered there
+        for (var method = first; method < bodies.size(); method++) {
+            if (Arrays.binarySearch(bodies.get(method), start) >= 0 && kinds[start] != uncompiled) {
+                methods[start] = method;
+            }
+        }
+    }
+
+    private void addMethods(int[] body) {
+        // Adds a method holding the given instructions, or, if it would be too large, two or more methods holding them
+        // between them.
+
+        var entries = 0;
+        for (var index = 0; index < body.length; index++) {
+            if (kinds[body[index]] != uncompiled && isEntry(body, index)) {
+                entries = entries + 1;
+            }
+        }
+        if (entries == 0 || bodies.size() >= maxMethods) {
+            // a method that cannot be entered anywhere is of no use
+            return;
+        }
+        if (body.length > 1 && new MethodCompiler(body, true).generate(new ClassWriter(0), "m") > maxMethodSize) {
+            var half = body.length / 2;
+            addMethods(Arrays.copyOfRange(body, 0, half));
+            addMethods(Arrays.copyOfRange(body, half, body.length));
+            return;
+        }
+        var method = bodies.size();
+        bodies.add(body);
+        for (var index = 0; index < body.length; index++) {
+            var addr = body[index];
+            if (methods[addr] < 0 && kinds[addr] != uncompiled && isEntry(body, index)) {
+                methods[addr] = method;
+            }
+        }
+    }
+
+    private boolean isEntry(int[] body, int index) {
+        // Tests whether the instruction at the given index of the body of a method starts a block of it.
+
+        return index == 0 || leaders[body[index]] || body[index - 1] != body[index] - 1;
+    }
+
+    // GENERATION
+
+    private void generateConstructor(ClassVisitor writer) {
+        var mv = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void generateDispatch(ClassVisitor writer) {
+        // Generates the run method of Code, which calls one of a dispatcher method for each group of generated
+        // methods, which calls the generated method, so that each of them stays small enough to be compiled.
+
+        var groups = (bodies.size() + dispatchGroup - 1) / dispatchGroup;
+        var mv = writer.visitMethod(ACC_PUBLIC, "run", dispatchType, null, null);
+        mv.visitCode();
+        var cases = new Label[Math.max(groups, 1)];
+        var none = new Label();
+        for (var group = 0; group < cases.length; group++) {
+            cases[group] = new Label();
+        }
+        mv.visitVarInsn(ILOAD, 2);
+        push(mv, Integer.numberOfTrailingZeros(dispatchGroup));
+        mv.visitInsn(IUSHR);
+        mv.visitTableSwitchInsn(0, cases.length - 1, none, cases);
+        for (var group = 0; group < cases.length; group++) {
+            mv.visitLabel(cases[group]);
+            if (group < groups) {
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitVarInsn(ILOAD, 2);
+                mv.visitVarInsn(ILOAD, 3);
+                mv.visitVarInsn(ILOAD, 4);
+                mv.visitMethodInsn(INVOKESTATIC, className, "d" + group, dispatchType, false);
+                mv.visitInsn(IRETURN);
+            } else {
+                mv.visitJumpInsn(GOTO, none);
+            }
+        }
+        mv.visitLabel(none);
+        push(mv, CompiledProgram.exited);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        for (var group = 0; group < groups; group++) {
+            var first = group * dispatchGroup;
+            var last = Math.min(first + dispatchGroup, bodies.size()) - 1;
+            mv = writer.visitMethod(ACC_PRIVATE | ACC_STATIC, "d" + group, dispatchType, null, null);
+            mv.visitCode();
+            var methodCases = new Label[last - first + 1];
+            for (var method = first; method <= last; method++) {
+                methodCases[method - first] = new Label();
+            }
+            none = new Label();
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitTableSwitchInsn(first, last, none, methodCases);
+            for (var method = first; method <= last; method++) {
+                mv.visitLabel(methodCases[method - first]);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ILOAD, 2);
+                mv.visitVarInsn(ILOAD, 3);
+                mv.visitMethodInsn(INVOKESTATIC, className, "m" + method, methodType, false);
+                mv.visitInsn(IRETURN);
+            }
+            mv.visitLabel(none);
+            push(mv, CompiledProgram.exited);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    private static void push(MethodVisitor mv, int value) {
+        // Generates code to push the given int constant.
+
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     Generates the static method for the given instructions, which is called with the machine, the code address of a
+     leader to start at, and the depth of nesting of generated methods. It runs the program until a RETURN returns from
+     the frame it was called for, when it returns {@link CompiledProgram#returned}, or until it cannot go on, when it
+     returns {@link CompiledProgram#exited}. Either way it stores the machine state back first.
+     */
+    private final class MethodCompiler {
+
+        // the instructions of the method, and the label of each that starts a block, by index
+        private final int[]   body;
+        private final Label[] labels;
+        // whether the method is only being generated to measure it, so that the methods it calls are not yet known
+        private final boolean measuring;
+
+        // the code that stores the machine state back and returns exited, for the exit whose code address and steps
+        // to give back are in their local variables; the code that returns exited once the state has been stored back;
+        // and the code of the failures and exits out of line, generated after the blocks
+        private final Label          exit     = new Label();
+        private final Label          stopped  = new Label();
+        private final List<Runnable> outlines = new ArrayList<>();
+
+        private MethodVisitor mv;
+
+        MethodCompiler(int[] body, boolean measuring) {
+            this.body = body;
+            this.measuring = measuring;
+            this.labels = new Label[body.length];
+            for (var index = 0; index < body.length; index++) {
+                if (kinds[body[index]] != uncompiled && isEntry(body, index)) {
+                    labels[index] = new Label();
+                }
+            }
+        }
+
+        int generate(ClassVisitor writer, String name) {
+            // Generates the method with the given name, and returns the size of its bytecode.
+
+            mv = writer.visitMethod(ACC_PRIVATE | ACC_STATIC, name, methodType, null, null);
+            mv.visitCode();
+            generateEntry();
+            var index = 0;
+            while (index < body.length) {
+                index = generateBlock(index);
+            }
+            for (var outline : outlines) {
+                outline.run();
+            }
+            generateExit();
+            var end = new Label();
+            mv.visitLabel(end);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+            return end.getOffset();
+        }
+
+        private void generateEntry() {
+            // Loads the registers the method keeps and jumps to the block at the code address it is called with.
+
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitFieldInsn(GETFIELD, vmClass, "ST", "I");
+            mv.visitVarInsn(ISTORE, stVar);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitFieldInsn(GETFIELD, vmClass, "LB", "I");
+            mv.visitVarInsn(ISTORE, lbVar);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitFieldInsn(GETFIELD, vmClass, "stepsLeft", "J");
+            mv.visitVarInsn(LSTORE, stepsVar);
+            loadData();
+            for (var local : new int[] { exitCpVar, refundVar, addrVar, indexVar, calleeVar, resultVar }) {
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, local);
+            }
+            mv.visitInsn(LCONST_0);
+            mv.visitVarInsn(LSTORE, accVar);
+
+            var keys = new ArrayList<Integer>();
+            for (var index = 0; index < body.length; index++) {
+                if (labels[index] != null) {
+                    keys.add(index);
+                }
+            }
+            var none = new Label();
+            mv.visitVarInsn(ILOAD, cpVar);
+            var low = body[keys.get(0)];
+            var high = body[keys.get(keys.size() - 1)];
+            if ((long) high - low + 1 <= 2L * keys.size()) {
+                var table = new Label[high - low + 1];
+                Arrays.fill(table, none);
+                for (var index : keys) {
+                    table[body[index] - low] = labels[index];
+                }
+                mv.visitTableSwitchInsn(low, high, none, table);
+            } else {
+                var addrs = new int[keys.size()];
+                var targets = new Label[keys.size()];
+                for (var k = 0; k < keys.size(); k++) {
+                    addrs[k] = body[keys.get(k)];
+                    targets[k] = labels[keys.get(k)];
+                }
+                mv.visitLookupSwitchInsn(none, addrs, targets);
+            }
+            // a code address the method cannot be entered at leaves the machine untouched
+            mv.visitLabel(none);
+            push(CompiledProgram.exited);
+            mv.visitInsn(IRETURN);
+        }
+
+        private void generateExit() {
+            mv.visitLabel(exit);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(ILOAD, exitCpVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "CP", "I");
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(LLOAD, stepsVar);
+            mv.visitVarInsn(ILOAD, refundVar);
+            mv.visitInsn(I2L);
+            mv.visitInsn(LADD);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "stepsLeft", "J");
+            storeStack();
+            mv.visitLabel(stopped);
+            push(CompiledProgram.exited);
+            mv.visitInsn(IRETURN);
+        }
+
+        private int generateBlock(int first) {
+            // Generates the block starting at the given index of the body, and returns the index after it.
+
+            var start = body[first];
+            if (kinds[start] == uncompiled) {
+                // reached from the block before it, so it exits for its handler to run it
+                exitTo(start, 0);
+                return first + 1;
+            }
+            var last = first;
+            while (!endsBlock(kinds[body[last]]) && last + 1 < body.length && !isEntry(body, last + 1)) {
+                last = last + 1;
+            }
+
+            mv.visitLabel(labels[first]);
+            // takes the steps of the whole block, unless fewer are left
+            var count = last - first + 1;
+            mv.visitVarInsn(LLOAD, stepsVar);
+            mv.visitLdcInsn((long) count);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFLT, outlineExit(start, 0));
+            mv.visitVarInsn(LLOAD, stepsVar);
+            mv.visitLdcInsn((long) count);
+            mv.visitInsn(LSUB);
+            mv.visitVarInsn(LSTORE, stepsVar);
+
+            var index = first;
+            while (index <= last) {
+                // each stretch up to a primitive routine called out of line, which may change the space for the
+                // stack, checks that the space is there for the whole stretch
+                var end = index;
+                while (end < last && kinds[body[end]] != primitive) {
+                    end = end + 1;
+                }
+                checkSpace(index, end, last);
+                for (; index <= end; index++) {
+                    generateInstruction(body[index], last - index);
+                }
+            }
+
+            var kind = kinds[body[last]];
+            if (kind == sequential || kind == primitive || kind == jumpIf || kind == call) {
+                goOn(last);
+            }
+            return last + 1;
+        }
+
+        private boolean endsBlock(int kind) {
+            return kind == jump || kind == jumpIf || kind == call || kind == returns || kind == halt;
+        }
+
+        private void goOn(int index) {
+            // Generates code to go on from the instruction at the given index of the body to the instruction after it.
+
+            var next = body[index] + 1;
+            if (index + 1 >= body.length || body[index + 1] != next) {
+                exitTo(next, 0);
+            }
+        }
+
+        private void checkSpace(int first, int last, int blockLast) {
+            // Generates code to check that the stack has the space that the instructions between the given indices of
+            // the body push, as checkSpace() is called for each of them, and otherwise to exit at the first of them.
+
+            long growth = 0, need = Long.MIN_VALUE;
+            for (var index = first; index <= last; index++) {
+                var addr = body[index];
+                var op = op(addr);
+                var n = n(addr);
+                var d = d(addr);
+                switch (op) {
+                    case Machine.LOADop:
+                        need = needed(need, growth, n);
+                        growth = growth + n;
+                        break;
+                    case Machine.LOADAop:
+                    case Machine.LOADLop:
+                        need = needed(need, growth, 1);
+                        growth = growth + 1;
+                        break;
+                    case Machine.LOADIop:
+                        growth = growth - 1;
+                        need = needed(need, growth, n);
+                        growth = growth + n;
+                        break;
+                    case Machine.STOREop:
+                        growth = growth - n;
+                        break;
+                    case Machine.STOREIop:
+                        growth = growth - 1 - n;
+                        break;
+                    case Machine.PUSHop:
+                        need = needed(need, growth, d);
+                        growth = growth + d;
+                        break;
+                    case Machine.POPop:
+                        growth = growth - d;
+                        break;
+                    case Machine.JUMPIFop:
+                        growth = growth - 1;
+                        break;
+                    case Machine.CALLop:
+                        need = needed(need, growth, 3);
+                        break;
+                    default:
+                        if (op > PRIMITIVEop + Machine.negDisplacement && op <= PRIMITIVEop + Machine.gtDisplacement) {
+                            growth = growth - 1;
+                        }
+                        break;
+                }
+            }
+            if (need != Long.MIN_VALUE) {
+                mv.visitVarInsn(ALOAD, vmVar);
+                mv.visitFieldInsn(GETFIELD, vmClass, "stackLimit", "I");
+                mv.visitVarInsn(ILOAD, stVar);
+                mv.visitInsn(ISUB);
+                push((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, need)));
+                mv.visitJumpInsn(IF_ICMPLT, outlineExit(body[first], blockLast - first + 1));
+            }
+        }
+
+        private long needed(long need, long growth, int spaceNeeded) {
+            // Returns the space the stack needs, given that needed so far, for spaceNeeded more words once it has grown
+            // by growth. Like checkSpace(), never fails for no words.
+
+            return spaceNeeded > 0 ? Math.max(need, growth + spaceNeeded) : need;
+        }
+
+        private void generateInstruction(int addr, int refund) {
+            // Generates the code of the instruction at addr, which gives back refund steps if it fails.
+
+            var op = op(addr);
+            var r = r(addr);
+            var n = n(addr);
+            var d = d(addr);
+            if (op >= PRIMITIVEop) {
+                generatePrimitive(addr, op - PRIMITIVEop, refund);
+                return;
+            }
+            switch (op) {
+                case Machine.LOADop:
+                    address(addr, r, d);
+                    mv.visitVarInsn(ISTORE, addrVar);
+                    copy(n, stVar, addrVar);
+                    increment(stVar, n);
+                    break;
+                case Machine.LOADAop:
+                    mv.visitVarInsn(ALOAD, dataVar);
+                    mv.visitVarInsn(ILOAD, stVar);
+                    address(addr, r, d);
+                    mv.visitInsn(IASTORE);
+                    increment(stVar, 1);
+                    break;
+                case Machine.LOADIop:
+                    increment(stVar, -1);
+                    loadWord(stVar, 0);
+                    mv.visitVarInsn(ISTORE, addrVar);
+                    copy(n, stVar, addrVar);
+                    increment(stVar, n);
+                    break;
+                case Machine.LOADLop:
+                    mv.visitVarInsn(ALOAD, dataVar);
+                    mv.visitVarInsn(ILOAD, stVar);
+                    push(d);
+                    mv.visitInsn(IASTORE);
+                    increment(stVar, 1);
+                    break;
+                case Machine.STOREop:
+                    address(addr, r, d);
+                    mv.visitVarInsn(ISTORE, addrVar);
+                    increment(stVar, -n);
+                    copy(n, addrVar, stVar);
+                    break;
+                case Machine.STOREIop:
+                    increment(stVar, -1);
+                    loadWord(stVar, 0);
+                    mv.visitVarInsn(ISTORE, addrVar);
+                    increment(stVar, -n);
+                    copy(n, addrVar, stVar);
+                    break;
+                case Machine.PUSHop:
+                    increment(stVar, d);
+                    break;
+                case Machine.POPop:
+                    mv.visitVarInsn(ILOAD, stVar);
+                    push(n);
+                    mv.visitInsn(ISUB);
+                    push(d);
+                    mv.visitInsn(ISUB);
+                    mv.visitVarInsn(ISTORE, addrVar);
+                    increment(stVar, -n);
+                    copy(n, addrVar, stVar);
+                    mv.visitVarInsn(ILOAD, addrVar);
+                    push(n);
+                    mv.visitInsn(IADD);
+                    mv.visitVarInsn(ISTORE, stVar);
+                    break;
+                case Machine.CALLop:
+                    generateCall(addr, n, target(addr));
+                    break;
+                case Machine.RETURNop:
+                    generateReturn(n, d);
+                    break;
+                case Machine.JUMPop:
+                    jumpTo(GOTO, target(addr));
+                    break;
+                case Machine.JUMPIFop:
+                    increment(stVar, -1);
+                    loadWord(stVar, 0);
+                    push(n);
+                    jumpTo(IF_ICMPEQ, target(addr));
+                    break;
+                case Machine.HALTop:
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    push(halted);
+                    mv.visitFieldInsn(PUTFIELD, vmClass, "status", "I");
+                    exitTo(addr, 0);
+                    break;
+                default:
+                    throw new IllegalStateException("Instruction at " + addr + " is not compiled");
+            }
+        }
+
+        private void generatePrimitive(int addr, int displacement, int refund) {
+            // Generates the code of a call to the primitive routine with the given displacement, inline for those up
+            // to gt and otherwise as a call of callPrimitive().
+
+            switch (displacement) {
+                case Machine.idDisplacement:
+                    break;
+                case Machine.notDisplacement:
+                    topAddress();
+                    loadWord(stVar, -1);
+                    push(Machine.trueRep);
+                    toTruthValue(IF_ICMPNE);
+                    mv.visitInsn(IASTORE);
+                    break;
+                case Machine.andDisplacement:
+                case Machine.orDisplacement: {
+                    increment(stVar, -1);
+                    topAddress();
+                    var decided = new Label();
+                    var end = new Label();
+                    // and is false, and or is true, as soon as either operand is
+                    var decidingJump = displacement == Machine.andDisplacement ? IF_ICMPNE : IF_ICMPEQ;
+                    loadWord(stVar, -1);
+                    push(Machine.trueRep);
+                    mv.visitJumpInsn(decidingJump, decided);
+                    loadWord(stVar, 0);
+                    push(Machine.trueRep);
+                    mv.visitJumpInsn(decidingJump, decided);
+                    push(displacement == Machine.andDisplacement ? Machine.trueRep : Machine.falseRep);
+                    mv.visitJumpInsn(GOTO, end);
+                    mv.visitLabel(decided);
+                    push(displacement == Machine.andDisplacement ? Machine.falseRep : Machine.trueRep);
+                    mv.visitLabel(end);
+                    mv.visitInsn(IASTORE);
+                    break;
+                }
+                case Machine.succDisplacement:
+                case Machine.predDisplacement:
+                    // the sum is an int, as in the switch interpreter, before it is checked
+                    loadWord(stVar, -1);
+                    mv.visitInsn(ICONST_0 + 1);
+                    mv.visitInsn(displacement == Machine.succDisplacement ? IADD : ISUB);
+                    mv.visitInsn(I2L);
+                    storeChecked(addr, refund);
+                    break;
+                case Machine.negDisplacement:
+                    topAddress();
+                    mv.visitInsn(DUP2);
+                    mv.visitInsn(IALOAD);
+                    mv.visitInsn(INEG);
+                    mv.visitInsn(IASTORE);
+                    break;
+                case Machine.addDisplacement:
+                case Machine.subDisplacement:
+                case Machine.multDisplacement:
+                    increment(stVar, -1);
+                    loadWord(stVar, -1);
+                    mv.visitInsn(I2L);
+                    loadWord(stVar, 0);
+                    mv.visitInsn(I2L);
+                    mv.visitInsn(displacement == Machine.addDisplacement ? LADD
+                                 : displacement == Machine.subDisplacement ? LSUB : LMUL);
+                    storeChecked(addr, refund);
+                    break;
+                case Machine.divDisplacement:
+                case Machine.modDisplacement: {
+                    increment(stVar, -1);
+                    loadWord(stVar, 0);
+                    var zero = new Label();
+                    mv.visitJumpInsn(IFEQ, zero);
+                    outlines.add(() -> {
+                        mv.visitLabel(zero);
+                        mv.visitVarInsn(ALOAD, vmVar);
+                        push(failedZeroDivide);
+                        mv.visitFieldInsn(PUTFIELD, vmClass, "status", "I");
+                        exitTo(addr + 1, refund);
+                    });
+                    topAddress();
+                    loadWord(stVar, -1);
+                    mv.visitInsn(I2L);
+                    loadWord(stVar, 0);
+                    mv.visitInsn(I2L);
+                    mv.visitInsn(displacement == Machine.divDisplacement ? LDIV : LREM);
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(IASTORE);
+                    break;
+                }
+                case Machine.ltDisplacement:
+                case Machine.leDisplacement:
+                case Machine.geDisplacement:
+                case Machine.gtDisplacement:
+                    increment(stVar, -1);
+                    topAddress();
+                    loadWord(stVar, -1);
+                    loadWord(stVar, 0);
+                    toTruthValue(displacement == Machine.ltDisplacement ? IF_ICMPLT
+                                 : displacement == Machine.leDisplacement ? IF_ICMPLE
+                                 : displacement == Machine.geDisplacement ? IF_ICMPGE : IF_ICMPGT);
+                    mv.visitInsn(IASTORE);
+                    break;
+                default:
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    mv.visitVarInsn(ILOAD, stVar);
+                    mv.visitFieldInsn(PUTFIELD, vmClass, "ST", "I");
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    push(displacement);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, vmClass, "callPrimitive", "(I)V", false);
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    mv.visitFieldInsn(GETFIELD, vmClass, "ST", "I");
+                    mv.visitVarInsn(ISTORE, stVar);
+                    loadData();
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    mv.visitFieldInsn(GETFIELD, vmClass, "status", "I");
+                    mv.visitJumpInsn(IFNE, outlineExit(addr + 1, refund));
+                    break;
+            }
+        }
+
+        private void storeChecked(int addr, int refund) {
+            // Generates code to store the long on the operand stack into the word under ST, as overflowChecked()
+            // does, failing with overflow if it does not fit in a word.
+
+            mv.visitVarInsn(LSTORE, accVar);
+            var overflow = new Label();
+            mv.visitVarInsn(LLOAD, accVar);
+            mv.visitLdcInsn((long) -Machine.maxintRep);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFLT, overflow);
+            mv.visitVarInsn(LLOAD, accVar);
+            mv.visitLdcInsn((long) Machine.maxintRep);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFGT, overflow);
+            topAddress();
+            mv.visitVarInsn(LLOAD, accVar);
+            mv.visitInsn(L2I);
+            mv.visitInsn(IASTORE);
+            outlines.add(() -> {
+                mv.visitLabel(overflow);
+                topAddress();
+                mv.visitInsn(ICONST_0);
+                mv.visitInsn(IASTORE);
+                mv.visitVarInsn(ALOAD, vmVar);
+                push(failedOverflow);
+                mv.visitFieldInsn(PUTFIELD, vmClass, "status", "I");
+                exitTo(addr + 1, refund);
+            });
+        }
+
+        private void generateCall(int addr, int staticLink, int target) {
+            // Generates the code of a CALL to the routine at target, which calls the method of the routine directly.
+
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, stVar);
+            register(addr, staticLink);
+            mv.visitInsn(IASTORE);
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, stVar);
+            push(1);
+            mv.visitInsn(IADD);
+            mv.visitVarInsn(ILOAD, lbVar);
+            mv.visitInsn(IASTORE);
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, stVar);
+            push(2);
+            mv.visitInsn(IADD);
+            push(addr + 1);
+            mv.visitInsn(IASTORE);
+            mv.visitVarInsn(ILOAD, stVar);
+            mv.visitVarInsn(ISTORE, calleeVar);
+            increment(stVar, 3);
+            storeStack();
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(ILOAD, calleeVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "LB", "I");
+            mv.visitVarInsn(ALOAD, vmVar);
+            push(target);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "CP", "I");
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(LLOAD, stepsVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "stepsLeft", "J");
+
+            // a call nested too deeply is left to the caller's caller
+            mv.visitVarInsn(ILOAD, depthVar);
+            push(CompiledProgram.maxDepth);
+            mv.visitJumpInsn(IF_ICMPGE, stopped);
+            if (measuring || methods[target] >= 0) {
+                mv.visitVarInsn(ALOAD, vmVar);
+                push(target);
+                mv.visitVarInsn(ILOAD, depthVar);
+                push(1);
+                mv.visitInsn(IADD);
+                mv.visitMethodInsn(INVOKESTATIC, className, "m" + Math.max(methods[target], 0), methodType, false);
+            } else {
+                push(CompiledProgram.exited);
+            }
+            mv.visitVarInsn(ISTORE, resultVar);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(ILOAD, resultVar);
+            mv.visitVarInsn(ILOAD, calleeVar);
+            mv.visitVarInsn(ILOAD, depthVar);
+            push(1);
+            mv.visitInsn(IADD);
+            push(addr + 1);
+            mv.visitVarInsn(ILOAD, lbVar);
+            mv.visitMethodInsn(INVOKESTATIC, "triangle/abstractMachine/CompiledProgram", "returnedTo", returnedToType,
+                               false);
+            mv.visitJumpInsn(IFEQ, stopped);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitFieldInsn(GETFIELD, vmClass, "ST", "I");
+            mv.visitVarInsn(ISTORE, stVar);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitFieldInsn(GETFIELD, vmClass, "stepsLeft", "J");
+            mv.visitVarInsn(LSTORE, stepsVar);
+            loadData();
+        }
+
+        private void generateReturn(int n, int d) {
+            // Generates the code of a RETURN, which stores the machine state back and returns returned.
+
+            mv.visitVarInsn(ILOAD, lbVar);
+            push(d);
+            mv.visitInsn(ISUB);
+            mv.visitVarInsn(ISTORE, addrVar);
+            loadWord(lbVar, 2);
+            mv.visitVarInsn(ISTORE, exitCpVar);
+            loadWord(lbVar, 1);
+            mv.visitVarInsn(ISTORE, lbVar);
+            increment(stVar, -n);
+            copy(n, addrVar, stVar);
+            mv.visitVarInsn(ILOAD, addrVar);
+            push(n);
+            mv.visitInsn(IADD);
+            mv.visitVarInsn(ISTORE, stVar);
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(ILOAD, exitCpVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "CP", "I");
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(LLOAD, stepsVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "stepsLeft", "J");
+            storeStack();
+            push(CompiledProgram.returned);
+            mv.visitInsn(IRETURN);
+        }
+
+        // CODE SEQUENCES
+
+        private void push(int value) {
+            BytecodeCompiler.push(mv, value);
+        }
+
+        private void loadData() {
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitFieldInsn(GETFIELD, vmClass, "data", "[I");
+            mv.visitVarInsn(ASTORE, dataVar);
+        }
+
+        private void storeStack() {
+            // Generates code to store ST and LB back into the machine.
+
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(ILOAD, stVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "ST", "I");
+            mv.visitVarInsn(ALOAD, vmVar);
+            mv.visitVarInsn(ILOAD, lbVar);
+            mv.visitFieldInsn(PUTFIELD, vmClass, "LB", "I");
+        }
+
+        private void increment(int var, int amount) {
+            if (amount >= Short.MIN_VALUE && amount <= Short.MAX_VALUE) {
+                if (amount != 0) {
+                    mv.visitIincInsn(var, amount);
+                }
+            } else {
+                mv.visitVarInsn(ILOAD, var);
+                push(amount);
+                mv.visitInsn(IADD);
+                mv.visitVarInsn(ISTORE, var);
+            }
+        }
+
+        private void loadWord(int var, int offset) {
+            // Generates code to push data[var + offset].
+
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, var);
+            if (offset != 0) {
+                push(offset);
+                mv.visitInsn(IADD);
+            }
+            mv.visitInsn(IALOAD);
+        }
+
+        private void topAddress() {
+            // Generates code to push data and ST - 1, ready to store into the word under ST.
+
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, stVar);
+            push(1);
+            mv.visitInsn(ISUB);
+        }
+
+        private void toTruthValue(int jumpIfTrue) {
+            // Generates code to compare the two ints on the operand stack with the given jump, and push the truth
+            // value of the comparison in their place.
+
+            var isTrue = new Label();
+            var end = new Label();
+            mv.visitJumpInsn(jumpIfTrue, isTrue);
+            push(Machine.falseRep);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(isTrue);
+            push(Machine.trueRep);
+            mv.visitLabel(end);
+        }
+
+        private void copy(int n, int toVar, int fromVar) {
+            // Generates code to copy the n words from the address in local fromVar to that in local toVar, a word at a
+            // time in ascending order, as the interpreter does.
+
+            if (n <= 4) {
+                for (var index = 0; index < n; index++) {
+                    mv.visitVarInsn(ALOAD, dataVar);
+                    mv.visitVarInsn(ILOAD, toVar);
+                    if (index > 0) {
+                        push(index);
+                        mv.visitInsn(IADD);
+                    }
+                    loadWord(fromVar, index);
+                    mv.visitInsn(IASTORE);
+                }
+                return;
+            }
+            var test = new Label();
+            var end = new Label();
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, indexVar);
+            mv.visitLabel(test);
+            mv.visitVarInsn(ILOAD, indexVar);
+            push(n);
+            mv.visitJumpInsn(IF_ICMPGE, end);
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, toVar);
+            mv.visitVarInsn(ILOAD, indexVar);
+            mv.visitInsn(IADD);
+            mv.visitVarInsn(ALOAD, dataVar);
+            mv.visitVarInsn(ILOAD, fromVar);
+            mv.visitVarInsn(ILOAD, indexVar);
+            mv.visitInsn(IADD);
+            mv.visitInsn(IALOAD);
+            mv.visitInsn(IASTORE);
+            mv.visitIincInsn(indexVar, 1);
+            mv.visitJumpInsn(GOTO, test);
+            mv.visitLabel(end);
+        }
+
+        private void register(int addr, int r) {
+            // Generates code to push the content of register number r for the instruction at addr, as content() finds
+            // it.
+
+            switch (r) {
+                case Machine.CTr:
+                    push(CT);
+                    break;
+                case Machine.PBr:
+                    push(image.PB);
+                    break;
+                case Machine.PTr:
+                    push(image.PT);
+                    break;
+                case Machine.SBr:
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    mv.visitFieldInsn(GETFIELD, vmClass, "SB", "I");
+                    break;
+                case Machine.STr:
+                    mv.visitVarInsn(ILOAD, stVar);
+                    break;
+                case Machine.HBr:
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    mv.visitFieldInsn(GETFIELD, vmClass, "HB", "I");
+                    break;
+                case Machine.HTr:
+                    mv.visitVarInsn(ALOAD, vmVar);
+                    mv.visitFieldInsn(GETFIELD, vmClass, "HT", "I");
+                    break;
+                case Machine.LBr:
+                case Machine.L1r:
+                case Machine.L2r:
+                case Machine.L3r:
+                case Machine.L4r:
+                case Machine.L5r:
+                case Machine.L6r:
+                    // the frame reached by following r - LBr static links from LB
+                    for (var level = Machine.LBr; level < r; level++) {
+                        mv.visitVarInsn(ALOAD, dataVar);
+                    }
+                    mv.visitVarInsn(ILOAD, lbVar);
+                    for (var level = Machine.LBr; level < r; level++) {
+                        mv.visitInsn(IALOAD);
+                    }
+                    break;
+                case Machine.CPr:
+                    push(addr);
+                    break;
+                default:
+                    // CB, and any register number that is not a register
+                    push(0);
+                    break;
+            }
+        }
+
+        private void address(int addr, int r, int d) {
+            // Generates code to push the address d[r] of the instruction at addr.
+
+            if (r == absoluteRegister) {
+                push(d);
+                return;
+            }
+            register(addr, r);
+            if (d != 0) {
+                push(d);
+                mv.visitInsn(IADD);
+            }
+        }
+
+        private void jumpTo(int jump, int target) {
+            // Generates the given jump to the target code address, directly if it starts a block of this method, and
+            // otherwise by exiting there.
+
+            var index = Arrays.binarySearch(body, target);
+            if (index >= 0 && labels[index] != null) {
+                mv.visitJumpInsn(jump, labels[index]);
+            } else {
+                mv.visitJumpInsn(jump, outlineExit(target, 0));
+            }
+        }
+
+        private void exitTo(int cp, int refund) {
+            // Generates code to exit at the given code address, giving back refund steps.
+
+            push(cp);
+            mv.visitVarInsn(ISTORE, exitCpVar);
+            push(refund);
+            mv.visitVarInsn(ISTORE, refundVar);
+            mv.visitJumpInsn(GOTO, exit);
+        }
+
+        private Label outlineExit(int cp, int refund) {
+            // Returns the label of code, out of line, that exits at the given code address, giving back refund steps.
+
+            var label = new Label();
+            outlines.add(() -> {
+                mv.visitLabel(label);
+                exitTo(cp, refund);
+            });
+            return label;
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * @(#)CodeImage.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static triangle.abstractMachine.TamVm.CB;
+import static triangle.abstractMachine.TamVm.INCREMENTop;
+import static triangle.abstractMachine.TamVm.INDEXop;
+import static triangle.abstractMachine.TamVm.LOADALOADIop;
+import static triangle.abstractMachine.TamVm.LOADLCALLop;
+import static triangle.abstractMachine.TamVm.PRIMITIVEop;
+import static triangle.abstractMachine.TamVm.absoluteRegister;
+import static triangle.abstractMachine.TamVm.binaryIntegerPrimitives;
+import static triangle.abstractMachine.TamVm.decodedWidth;
+import static triangle.abstractMachine.TamVm.superinstructionNames;
+
+/**
+ The pre-decoded code store of an object program, as run by {@link TamVm}, shared by every machine that loads the same
+ program with the same data store layout.
+ <p>
+ Images are kept in a cache keyed by the SHA-256 digest of the object program and the contents of SB and HB, which are
+ added to operands when decoding, so that loading a program that has been loaded before costs only the digest. An image
+ is never changed once it has been decoded, and the handlers and bytecode that the threaded, compiled and tiered
+ engines build from it, and the findings of the {@link Verifier}, are shared as well.
+ <p>
+ The cache holds the {@link #cacheCapacity} images most recently loaded, so that a long-running process that loads many
+ different programs, such as a {@link BatchRunner}, does not keep every one of them. A machine keeps the image it has
+ loaded whether or not it is still in the cache.
+ */
+final class CodeImage {
+
+    private record Key(String digest, int SB, int HB) { }
+
+    // the number of images kept in the cache
+    static final int cacheCapacity = 64;
+
+    // the images in the cache, least recently loaded first, which is guarded by its own lock
+    private static final Map<Key, CodeImage> cache = new LinkedHashMap<>(16, 0.75f, true) {
+
+        @Override protected boolean removeEldestEntry(Map.Entry<Key, CodeImage> eldest) {
+            return size() > cacheCapacity;
+        }
+
+    };
+
+    // the SHA-256 digest of the object program, in hexadecimal
+    final String digest;
+
+    // the decoded code, the number of instructions in it, and how many of each superinstruction were fused
+    final int[] decodedCode;
+    final int   CT;
+    final int[] fusionCounts = new int[superinstructionNames.length];
+
+    // The primitive routines start at PB and end before PT. PB is Machine.PB, the size of the code store of the
+    // original machine, unless the program is larger than that, when they are moved to just above its code, so that a
+    // program of any size fits. Object programs address primitive routines relative to PB, so are unaffected.
+    final int PB, PT;
+
+    // created when first needed; two machines racing to create them each build an equivalent one, and either may be
+    // kept
+    private volatile ThreadedInterpreter.Handler[] handlers;
+    private volatile CompiledProgram               compiled;
+    private volatile Verifier                      verifier;
+
+    private CodeImage(String digest, int[] fields, int CT, int SB, int HB) {
+        this.digest = digest;
+        this.CT = CT;
+        this.PB = Math.max(Machine.PB, CT);
+        this.PT = PB + (Machine.PT - Machine.PB);
+        this.decodedCode = new int[CT * decodedWidth];
+        decodeProgram(fields, SB, HB);
+        fuseSuperinstructions();
+    }
+
+    static CodeImage of(ByteBuffer objectProgram, int SB, int HB) throws IOException {
+        // Returns the image of the object program in the given buffer, in either object format, decoded for a data
+        // store laid out with the given SB and HB, decoding it only if it is not in the cache. The buffer may be mapped
+        // from the object file, since it is read in place and not kept.
+
+        var key = new Key(digest(objectProgram), SB, HB);
+        CodeImage image;
+        synchronized (cache) {
+            image = cache.get(key);
+        }
+        if (image == null) {
+            // decoded outside the lock, so that machines loading other programs are not held up; two machines racing
+            // to decode the same program each decode it, and the first to finish is kept
+            var fields = ObjectFormat.read(objectProgram);
+            image = new CodeImage(key.digest(), fields, CB + fields.length / ObjectFormat.fieldCount, SB, HB);
+            synchronized (cache) {
+                var cached = cache.putIfAbsent(key, image);
+                if (cached != null) {
+                    image = cached;
+                }
+            }
+        }
+        return image;
+    }
+
+    static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static String digest(ByteBuffer objectProgram) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(objectProgram.duplicate());
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException s) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(s);
+        }
+    }
+
+    ThreadedInterpreter.Handler[] handlers() {
+        // Returns the handlers of the threaded engine for this image, translating them when first needed.
+
+        var handlers = this.handlers;
+        if (handlers == null) {
+            handlers = ThreadedInterpreter.translate(decodedCode, CT);
+            this.handlers = handlers;
+        }
+        return handlers;
+    }
+
+    CompiledProgram compiled() {
+        // Returns the program of the compiled engine for this image, generating its bytecode when first needed.
+
+        var compiled = this.compiled;
+        if (compiled == null) {
+            compiled = new CompiledProgram(this);
+            this.compiled = compiled;
+        }
+        return compiled;
+    }
+
+    Verifier verifier() {
+        // Returns the verifier's findings for this image, verifying it when first needed.
+
+        var verifier = this.verifier;
+        if (verifier == null) {
+            verifier = new Verifier(this);
+            this.verifier = verifier;
+        }
+        return verifier;
+    }
+
+    // DECODING
+
+    private void decodeProgram(int[] fields, int SB, int HB) {
+        // Decodes the instructions whose fields are given, as read by ObjectFormat, into decodedCode, for a data store
+        // laid out with the given SB and HB.
+
+        for (var addr = CB; addr < CT; addr++) {
+            var j = (addr - CB) * ObjectFormat.fieldCount;
+            var i = addr * decodedWidth;
+            var r = fields[j + 1];
+            var d = fields[j + 3];
+            switch (r) {
+                case Machine.CBr:
+                case Machine.PBr:
+                case Machine.PTr:
+                case Machine.SBr:
+                case Machine.HBr:
+                    d = d + fixedContent(r, SB, HB);
+                    r = absoluteRegister;
+                    break;
+                default:
+                    break;
+            }
+            var op = fields[j];
+            if (op == Machine.CALLop && r == absoluteRegister && d >= PB && d < PT) {
+                op = PRIMITIVEop + d - PB;
+            }
+            decodedCode[i] = op;
+            decodedCode[i + 1] = r;
+            decodedCode[i + 2] = fields[j + 2];
+            decodedCode[i + 3] = d;
+        }
+    }
+
+    private int fixedContent(int r, int SB, int HB) {
+        // Returns the content of register number r, one of those whose content is fixed once the data store is laid
+        // out with the given SB and HB.
+
+        switch (r) {
+            case Machine.CBr:
+                return CB;
+            case Machine.PBr:
+                return PB;
+            case Machine.PTr:
+                return PT;
+            case Machine.SBr:
+                return SB;
+            default:
+                return HB;
+        }
+    }
+
+    private boolean isPrimitiveCall(int addr, int primitiveDisplacement) {
+        // Tests whether the decoded instruction at the given code address calls the given primitive routine.
+
+        return decodedCode[addr * decodedWidth] == PRIMITIVEop + primitiveDisplacement;
+    }
+
+    private void fuseSuperinstructions() {
+        // Replaces the opcode of the first instruction of each common sequence in decodedCode by that of the
+        // corresponding superinstruction.
+
+        for (var addr = CB; addr < CT; addr++) {
+            var i = addr * decodedWidth;
+            switch (decodedCode[i]) {
+                case Machine.LOADLop:
+                    if (addr + 2 < CT && isPrimitiveCall(addr + 1, Machine.multDisplacement)
+                        && isPrimitiveCall(addr + 2, Machine.addDisplacement)) {
+                        fuse(addr, INDEXop);
+                    } else if (addr + 1 < CT) {
+                        for (var p : binaryIntegerPrimitives) {
+                            if (isPrimitiveCall(addr + 1, p)) {
+                                fuse(addr, LOADLCALLop);
+                                decodedCode[i + 2] = p;
+                            }
+                        }
+                    }
+                    break;
+                case Machine.LOADAop:
+                    if (addr + 1 < CT && decodedCode[i + decodedWidth] == Machine.LOADIop) {
+                        fuse(addr, LOADALOADIop);
+                    }
+                    break;
+                case Machine.LOADop:
+                    if (addr + 3 < CT && decodedCode[i + 2] == 1
+                        && decodedCode[i + decodedWidth] == Machine.LOADLop
+                        && isPrimitiveCall(addr + 2, Machine.addDisplacement)
+                        && decodedCode[i + 3 * decodedWidth] == Machine.STOREop
+                        && decodedCode[i + 3 * decodedWidth + 2] == 1) {
+                        fuse(addr, INCREMENTop);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void fuse(int addr, int superinstruction) {
+        // Replaces the opcode of the decoded instruction at the given code address by that of the given
+        // superinstruction.
+
+        decodedCode[addr * decodedWidth] = superinstruction;
+        fusionCounts[superinstruction - LOADLCALLop]++;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * @(#)CompiledProgram.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import static triangle.abstractMachine.TamVm.CB;
+import static triangle.abstractMachine.TamVm.failedInvalidCodeAddress;
+import static triangle.abstractMachine.TamVm.running;
+
+/**
+ Runs the program in a {@link CodeImage} as JVM bytecode, which {@link BytecodeCompiler} generates from it the first
+ time it is needed, as the static methods of a hidden class. Each routine of the program becomes one or more of those
+ methods, which keep ST, LB and the count of steps left in local variables, and which HotSpot then compiles to machine
+ code like any other.
+ <p>
+ The generated code runs only what it can run exactly as {@link TamVm#interpretProgram()} does, counting the same
+ instructions. Wherever it cannot carry on, it stores the machine state back and returns: at an instruction that it
+ does not compile, such as CALLI or JUMPI, when fewer steps are left than the next block of instructions holds, and
+ when the stack has too little space for the next stretch of instructions. The instruction it stopped at is then run by
+ the handlers of {@link ThreadedInterpreter}, which check for themselves, before the generated code is entered again.
+ <p>
+ As well as running a whole program, the generated code can run just a hot routine or loop on behalf of the tiered mode
+ of {@link TamVm#interpretProgram()}.
+ */
+final class CompiledProgram {
+
+    // what the method generated for a routine returns: that the frame it was called for has returned, or that it has
+    // stopped anywhere else, having stored the machine state back
+    static final int returned = 0, exited = 1;
+
+    // the number of calls of generated methods that may be nested on the JVM stack; a CALL any deeper stores the
+    // machine state back and returns, so that a deeply recursive program does not overflow the JVM stack
+    static final int maxDepth = 256;
+
+    // The class generated for a program implements Code, whose run method calls the given generated method to run the
+    // program from the given code address, which must be a leader of that method, and returns what it returns.
+    interface Code {
+
+        int run(TamVm vm, int method, int cp, int depth);
+
+    }
+
+    // the handlers of the program, and its generated code with, for each code address, the number of the generated
+    // method that can be entered there, or -1
+    private final ThreadedInterpreter.Handler[] handlers;
+    private final Code                          code;
+    private final int[]                         methods;
+
+    CompiledProgram(CodeImage image) {
+        var compiler = new BytecodeCompiler(image);
+        this.handlers = image.handlers();
+        this.code = compiler.compile();
+        this.methods = compiler.methods();
+    }
+
+    void interpretProgram(TamVm vm) {
+        // Runs the program in the code store of the given machine from CP, until it stops or the machine's stepsLeft is
+        // used up, even if a program that has overwritten its link data returns below SB.
+
+        interpretFrame(vm, Integer.MIN_VALUE);
+    }
+
+    void interpretFrame(TamVm vm, int frameBase) {
+        // Runs the program in the code store of the given machine from CP, until the frame at frameBase returns, the
+        // program stops or the machine's stepsLeft is used up.
+
+        runFrame(vm, frameBase, 0);
+    }
+
+    private void runFrame(TamVm vm, int frameBase, int depth) {
+        // Runs the program as interpretFrame does, from generated code called with the given depth of nesting.
+
+        do {
+            var cp = vm.CP;
+            var steps = vm.stepsLeft;
+            var method = methods[cp];
+            if (method >= 0) {
+                code.run(vm, method, cp, depth);
+                // the generated code does not keep the display
+                vm.displayLevels = 0;
+            }
+            if (vm.stepsLeft == steps && vm.status == running) {
+                // the generated code could not start at cp, so the instruction there is run by its handler
+                handlers[cp].execute(vm);
+                vm.stepsLeft = steps - 1;
+            }
+            if (vm.CP < CB || vm.CP >= vm.CT) {
+                vm.status = failedInvalidCodeAddress;
+            }
+        } while (vm.status == running && vm.LB >= frameBase && vm.stepsLeft > 0);
+    }
+
+    static boolean returnedTo(TamVm vm, int result, int frameBase, int depth, int returnAddress, int lb) {
+        // Called by generated code once the method it called for the routine whose frame is at frameBase has returned
+        // the given result. Finishes running the routine if the method stopped before the routine returned, and
+        // returns whether the routine has returned to returnAddress in the frame at lb, so that the caller can carry
+        // on.
+
+        if (result == exited && vm.status == running && vm.stepsLeft > 0) {
+            vm.image.compiled().runFrame(vm, frameBase, depth);
+        }
+        return vm.status == running && vm.CP == returnAddress && vm.LB == lb;
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * @(#)HeapAllocator.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static triangle.abstractMachine.TamVm.running;
+
+/**
+ Allocates the objects of the NEW primitive routine in the heap of a {@link TamVm}, and takes them back when they are
+ passed to DISPOSE.
+ <p>
+ The heap occupies the addresses from HT up to HB. Disposed objects are kept in a free list, in which adjacent free
+ blocks are coalesced, and NEW takes the smallest free block that is large enough before it extends the heap by moving
+ HT down. A free block that reaches down to HT is given back by moving HT up, so that the space is again available to
+ the stack.
+ <p>
+ The heap is described by arrays of ints indexed by depth below HB, so that neither NEW nor DISPOSE boxes an address or
+ allocates a node. Each object and free block records its size at its first word, and each free block records it at
+ its last word as well, so that DISPOSE finds the blocks either side of an object directly. Free blocks are kept in
+ doubly-linked lists by size, one for each size below {@link #sizeClasses} and one for all larger blocks, with a bit
+ set for each of the former that is not empty. While there are no free blocks, NEW just moves HT down.
+ */
+final class HeapAllocator {
+
+    // the number of sizes of free block that each have a list of their own; larger blocks share the last list
+    static final int sizeClasses = 64;
+
+    // no address, as the end of a list
+    private static final int none = -1;
+
+    // the machine whose heap this is
+    private final TamVm vm;
+
+    // The words of the heap, by depth below HB, as given by depth. The size of the object that starts at each word, or
+    // minus the size of the free block that does, or 0 for a word that starts neither; the size of the free block that
+    // ends at each word, which may be left behind by a block that has since been taken, so is trusted only if a free
+    // block of that size starts where it says; and the addresses of the blocks before and after each free block in its
+    // list.
+    private int[] blockSizes    = new int[0];
+    private int[] freeEndSizes  = new int[0];
+    private int[] previousFrees = new int[0];
+    private int[] nextFrees     = new int[0];
+
+    // the address of the first block in the list of each size, and a bit for each size below sizeClasses whose list is
+    // not empty
+    private final int[] freeLists = new int[sizeClasses + 1];
+    private long        nonEmptyFreeLists;
+
+    // STATISTICS
+    long allocations, disposals, allocatedWords, liveWords, freeWords, maxHeapWords;
+
+    // the numbers of live objects and of free blocks
+    int liveObjects, freeBlocks;
+
+    HeapAllocator(TamVm vm) {
+        this.vm = vm;
+        Arrays.fill(freeLists, none);
+    }
+
+    void reset() {
+        // Empties the heap.
+
+        // every word below the heap is left at 0 as the heap shrinks, so only blockSizes needs clearing, and only
+        // where the heap has reached
+        Arrays.fill(blockSizes, 0, (int) Math.min(maxHeapWords, blockSizes.length), 0);
+        Arrays.fill(freeLists, none);
+        nonEmptyFreeLists = 0;
+        allocations = 0;
+        disposals = 0;
+        allocatedWords = 0;
+        liveWords = 0;
+        freeWords = 0;
+        maxHeapWords = 0;
+        liveObjects = 0;
+        freeBlocks = 0;
+    }
+
+    private int depth(int addr) {
+        // Returns the index in the arrays of the word at the given address in the heap.
+
+        return vm.HB - 1 - addr;
+    }
+
+    private void ensureDepth(int depth) {
+        // Makes the arrays long enough to describe a heap of the given number of words.
+
+        if (blockSizes.length < depth) {
+            var length = Math.max(Math.max(depth, 2 * blockSizes.length), sizeClasses);
+            blockSizes = Arrays.copyOf(blockSizes, length);
+            freeEndSizes = Arrays.copyOf(freeEndSizes, length);
+            previousFrees = Arrays.copyOf(previousFrees, length);
+            nextFrees = Arrays.copyOf(nextFrees, length);
+        }
+    }
+
+    int allocate(int size) {
+        // Returns the address of a new object of the given size, or signals failure if there is no room for it.
+
+        if (size <= 0) {
+            // an object with no words takes no space, and has no address of its own
+            return vm.HT;
+        }
+
+        var addr = freeBlocks == 0 ? none : bestFit(size);
+        if (addr != none) {
+            var blockSize = -blockSizes[depth(addr)];
+            removeFree(addr, blockSize);
+            if (blockSize > size) {
+                addFree(addr, blockSize - size);
+            }
+            addr = addr + blockSize - size;
+        } else {
+            vm.checkHeapSpace(size);
+            if (vm.status != running) {
+                return vm.HT;
+            }
+            vm.HT = vm.HT - size;
+            addr = vm.HT;
+            ensureDepth(vm.HB - vm.HT);
+            maxHeapWords = Math.max(maxHeapWords, vm.HB - vm.HT);
+        }
+        blockSizes[depth(addr)] = size;
+        liveObjects = liveObjects + 1;
+        allocations = allocations + 1;
+        allocatedWords = allocatedWords + size;
+        liveWords = liveWords + size;
+        return addr;
+    }
+
+    private int bestFit(int size) {
+        // Returns the address of the smallest free block of at least the given size, or none if there is none.
+
+        if (size < sizeClasses) {
+            var fits = nonEmptyFreeLists & -1L << size;
+            if (fits != 0) {
+                return freeLists[Long.numberOfTrailingZeros(fits)];
+            }
+        }
+        var best = none;
+        var bestSize = Integer.MAX_VALUE;
+        for (var addr = freeLists[sizeClasses]; addr != none; addr = nextFrees[depth(addr)]) {
+            var blockSize = -blockSizes[depth(addr)];
+            if (blockSize >= size && blockSize < bestSize) {
+                best = addr;
+                bestSize = blockSize;
+            }
+        }
+        return best;
+    }
+
+    void dispose(int addr) {
+        // Returns the object at the given address to the free list. Addresses not returned by allocate are ignored.
+
+        if (addr < vm.HT || addr >= vm.HB || blockSizes[depth(addr)] <= 0) {
+            return;
+        }
+        var size = blockSizes[depth(addr)];
+        blockSizes[depth(addr)] = 0;
+        liveObjects = liveObjects - 1;
+        disposals = disposals + 1;
+        liveWords = liveWords - size;
+
+        // coalesce with the free blocks either side
+        var start = addr;
+        var end = addr + size;
+        if (addr > vm.HT) {
+            var belowSize = freeEndSizes[depth(addr - 1)];
+            if (belowSize > 0 && addr - belowSize >= vm.HT && blockSizes[depth(addr - belowSize)] == -belowSize) {
+                start = addr - belowSize;
+                removeFree(start, belowSize);
+            }
+        }
+        if (end < vm.HB && blockSizes[depth(end)] < 0) {
+            var aboveSize = -blockSizes[depth(end)];
+            removeFree(end, aboveSize);
+            end = end + aboveSize;
+        }
+
+        if (start == vm.HT) {
+            vm.HT = end;
+        } else {
+            addFree(start, end - start);
+        }
+    }
+
+    private void addFree(int addr, int size) {
+        // Makes the given block free, putting it first in the list of its size.
+
+        var sizeClass = Math.min(size, sizeClasses);
+        var first = freeLists[sizeClass];
+        blockSizes[depth(addr)] = -size;
+        freeEndSizes[depth(addr + size - 1)] = size;
+        previousFrees[depth(addr)] = none;
+        nextFrees[depth(addr)] = first;
+        if (first != none) {
+            previousFrees[depth(first)] = addr;
+        }
+        freeLists[sizeClass] = addr;
+        if (sizeClass < sizeClasses) {
+            nonEmptyFreeLists = nonEmptyFreeLists | 1L << sizeClass;
+        }
+        freeBlocks = freeBlocks + 1;
+        freeWords = freeWords + size;
+    }
+
+    private void removeFree(int addr, int size) {
+        // Takes the given free block out of the list of its size.
+
+        var sizeClass = Math.min(size, sizeClasses);
+        var previous = previousFrees[depth(addr)];
+        var next = nextFrees[depth(addr)];
+        if (previous == none) {
+            freeLists[sizeClass] = next;
+            if (next == none && sizeClass < sizeClasses) {
+                nonEmptyFreeLists = nonEmptyFreeLists & ~(1L << sizeClass);
+            }
+        } else {
+            nextFrees[depth(previous)] = next;
+        }
+        if (next != none) {
+            previousFrees[depth(next)] = previous;
+        }
+        blockSizes[depth(addr)] = 0;
+        freeBlocks = freeBlocks - 1;
+        freeWords = freeWords - size;
+    }
+
+    // SNAPSHOTS
+
+    void write(DataOutputStream out) throws IOException {
+        // Writes the live objects and free blocks of the heap, and its counters, to a snapshot of the machine. The
+        // free blocks of each list are written last first, so that reading them puts each list back in the same
+        // order, and a run carried on from the snapshot takes the same blocks as one that was not interrupted.
+
+        out.writeInt(liveObjects);
+        for (var addr = vm.HT; addr < vm.HB; addr = addr + Math.abs(blockSizes[depth(addr)])) {
+            if (blockSizes[depth(addr)] > 0) {
+                out.writeInt(addr);
+                out.writeInt(blockSizes[depth(addr)]);
+            }
+        }
+        out.writeInt(freeBlocks);
+        for (var first : freeLists) {
+            var last = none;
+            for (var addr = first; addr != none; addr = nextFrees[depth(addr)]) {
+                last = addr;
+            }
+            for (var addr = last; addr != none; addr = previousFrees[depth(addr)]) {
+                out.writeInt(addr);
+                out.writeInt(-blockSizes[depth(addr)]);
+            }
+        }
+        out.writeLong(allocations);
+        out.writeLong(disposals);
+        out.writeLong(allocatedWords);
+        out.writeLong(maxHeapWords);
+    }
+
+    void read(DataInputStream in) throws IOException {
+        // Replaces the state of the heap by that read from a snapshot of the machine, whose HT and HB have been read
+        // already.
+
+        reset();
+        ensureDepth(vm.HB - vm.HT);
+        // the heap described by the old HT is cleared by reset, and this one by reset if the snapshot is bad
+        maxHeapWords = vm.HB - vm.HT;
+        var objectCount = in.readInt();
+        for (var k = 0; k < objectCount; k++) {
+            var addr = in.readInt();
+            var size = in.readInt();
+            checkBlock(addr, size);
+            blockSizes[depth(addr)] = size;
+            liveObjects = liveObjects + 1;
+            liveWords = liveWords + size;
+        }
+        var blockCount = in.readInt();
+        for (var k = 0; k < blockCount; k++) {
+            var addr = in.readInt();
+            var size = in.readInt();
+            checkBlock(addr, size);
+            addFree(addr, size);
+        }
+        // the objects and free blocks must fill the heap between them, without overlapping
+        var blocks = 0;
+        for (var addr = vm.HT; addr < vm.HB; addr = addr + Math.abs(blockSizes[depth(addr)])) {
+            if (blockSizes[depth(addr)] == 0 || addr + Math.abs(blockSizes[depth(addr)]) > vm.HB) {
+                throw new IOException("Snapshot holds heap blocks that do not fill the heap");
+            }
+            blocks = blocks + 1;
+        }
+        if (blocks != objectCount + blockCount) {
+            throw new IOException("Snapshot holds heap blocks that do not fill the heap");
+        }
+        allocations = in.readLong();
+        disposals = in.readLong();
+        allocatedWords = in.readLong();
+        maxHeapWords = Math.max(in.readLong(), vm.HB - vm.HT);
+    }
+
+    private void checkBlock(int addr, int size) throws IOException {
+        // Signals that a snapshot is corrupt if the given object or free block does not lie in the heap, or starts
+        // where another does.
+
+        if (size <= 0 || addr < vm.HT || addr > vm.HB - size) {
+            throw new IOException("Snapshot holds a heap block outside the heap: " + size + " words at " + addr);
+        }
+        if (blockSizes[depth(addr)] != 0) {
+            throw new IOException("Snapshot holds two heap blocks at " + addr);
+        }
+    }
+
+    void showStatistics(long elapsedNanos) {
+        // Writes the counters of heap use.
+
+        var heapWords = vm.HB - vm.HT;
+        System.out.println("");
+        System.out.println("Heap usage:");
+        System.out.println("  objects allocated: " + allocations + " (" + allocatedWords + " words)");
+        System.out.println("  objects disposed: " + disposals);
+        System.out.println("  live words: " + liveWords);
+        System.out.println("  heap size: " + heapWords + " words (at most " + maxHeapWords + ")");
+        System.out.println("  free-list words: " + freeWords + " in " + freeBlocks + " blocks");
+        if (heapWords > 0) {
+            System.out.println("  fragmentation: " + (100 * freeWords / heapWords) + "%");
+        }
+        if (elapsedNanos > 0) {
+            System.out.println("  allocation rate: " + (allocations * 1_000_000_000L / elapsedNanos) + " objects/s");
+        }
+    }
+
+}
@@ -18,626 +18,435 @@
 
 package triangle.abstractMachine;
 
-import java.io.DataInputStream;
+import com.sampullara.cli.Args;
+import com.sampullara.cli.Argument;
+
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Runs a TAM object program from the command line, on a {@link TamVm} configured from the arguments.
+ <p>
+ The program is run by a switch on the opcode of each instruction, unless -threaded runs it as a chain of handlers, one
+ per instruction, or -compiled translates it into JVM bytecode, a method for each routine, when it is first run.
+ -tiered runs it by the switch, and runs routines and loops as that bytecode once they become hot. -verify checks the
+ program once when it is loaded, and refuses it unless the switch can then run it without checking the code address
+ after every instruction and the stack space at every push.
+ <p>
+ -profile counts the instructions executed at each code address, by opcode, by primitive routine and by routine, and
+ writes a report of the counts when it stops. -foldedStacksFile also writes the instructions executed on each stack of
+ routines to a file, for drawing a flame graph. -traceFile records the most recent -traceSize events of the run, such
+ as instructions, calls and input and output, and writes them to a binary trace file when it stops, which
+ {@link TraceRecorder} can print. Both run the program by the threaded engine, through handlers that report each
+ instruction.
+ <p>
+ -snapshotFile saves the state of the run to a file every -snapshotInterval instructions, and when the interpreter is
+ stopped by a signal such as SIGTERM or SIGINT while the program is still running. Run again with the same arguments
+ and -resume, it carries on from the snapshot if there is one: the input file is read from where the run had got to,
+ and the output file is cut back to what the run had written when the snapshot was saved and added to from there.
+ A snapshot is saved on a signal only once the run reaches the end of a slice, so a run that is waiting for input from
+ the console when the signal arrives saves none, and after waiting 30 seconds the interpreter stops without one. A run
+ resumed after that carries on from the last snapshot saved, if any, which -snapshotInterval keeps recent.
+ */
 public class Interpreter {
 
-    final static int CB = 0, SB = 0, HB = 1024; // = upper bound of data array + 1
-    // status values
-    final static int running         = 0, halted = 1, failedDataStoreFull = 2, failedInvalidCodeAddress = 3,
-            failedInvalidInstruction = 4, failedOverflow = 5, failedZeroDivide = 6, failedIOError = 7;
-
-    // DATA STORE
     static long startTimeNanos = 0;
 
-    // DATA STORE REGISTERS AND OTHER REGISTERS
     static String objectName;
-    static int[]  data = new int[1024];
-    static int    CT, CP, ST, HT, LB, status;
-    static long accumulator;
-    static int  currentChar;
+
+    @Argument(description = "Show which superinstructions were fused when loading") private static boolean showFusions;
+
+    @Argument(description = "Run the program with the threaded-code engine") private static boolean threaded;
+
+    @Argument(description = "Run the program as JVM bytecode compiled from it") private static boolean compiled;
+
+    @Argument(description = "Run hot routines and loops as JVM bytecode compiled from them")
+    private static boolean tiered;
+
+    @Argument(description = "Number of calls or back-edges after which -tiered runs a routine or loop as bytecode")
+    private static int tierThreshold = 1000;
+
+    @Argument(description = "Number of words of data store reserved for the stack") private static int stackSize = 512;
+
+    @Argument(description = "Number of words of data store reserved for the heap") private static int heapSize = 512;
+
+    @Argument(description = "Grow the stack on demand instead of failing when it is full")
+    private static boolean growDataStore;
+
+    @Argument(description = "Number of words beyond which -growDataStore does not grow the data store")
+    private static int maxDataStoreSize = 1 << 24;
+
+    @Argument(description = "Show the heap usage of the program when it stops") private static boolean showHeap;
+
+    @Argument(description = "Verify the program when loading it, and run it without per-instruction checks")
+    private static boolean verify;
+
+    @Argument(description = "Number of instructions after which the program is stopped, or 0 for no limit")
+    private static long maxInstructions;
+
+    @Argument(description = "Count where the program spends its instructions, and report the counts when it stops")
+    private static boolean profile;
+
+    @Argument(description = "File to write the profile of the program to as folded stacks, for a flame graph")
+    private static String foldedStacksFile;
+
+    @Argument(description = "File to write a trace of the most recent events of the program to when it stops")
+    private static String traceFile;
+
+    @Argument(description = "Number of most recent events that -traceFile keeps")
+    private static int traceSize = 1 << 16;
+
+    @Argument(description = "File to save the state of the run to, so that it can be resumed")
+    private static String snapshotFile;
+
+    @Argument(description = "Number of instructions between snapshots, or 0 to save one only when stopped by a signal")
+    private static long snapshotInterval;
+
+    @Argument(description = "Carry on the run from -snapshotFile, if it exists, instead of starting afresh")
+    private static boolean resume;
+
+    @Argument(description = "File to read the program's input from, instead of the console")
+    private static String inputFile;
+
+    @Argument(description = "File to write the program's output to, instead of the console")
+    private static String outputFile;
+
+    @Argument(description = "Size in bytes of the buffers for the program's input and output")
+    private static int ioBufferSize = 8192;
+
+    @Argument(description = "Do not prompt for the input of GETINT (implied by -inputFile)")
+    private static boolean noPrompt;
+
+    // the number of instructions run between checks for a signal to stop, when saving snapshots
+    private static final long signalCheckInterval = 1 << 20;
+
+    // the number of seconds a signal to stop waits for the run to save its snapshot, before the interpreter stops
+    // without one
+    private static final long stopTimeoutSeconds = 30;
+
+    // the output file when saving snapshots, so that it can be cut back on resuming and forced out to disk
+    private static FileChannel outputChannel;
+
+    // set when the interpreter is stopped by a signal while saving snapshots
+    private static volatile boolean stopRequested;
 
     public static void main(String[] args) {
         System.out.println("********** TAM Interpreter (Java Version 2.1) **********");
 
-        if (args.length == 1) {
-            objectName = args[0];
+        var objectNames = Args.parseOrExit(Interpreter.class, args);
+        if (objectNames.size() == 1) {
+            objectName = objectNames.get(0);
         } else {
             objectName = "obj.tam";
         }
 
-        loadObjectProgram(objectName);
-        if (CT != CB) {
-            startTimeNanos = System.nanoTime();
-            interpretProgram();
-            showStatus();
+        if (stackSize < 0 || heapSize < 0 || stackSize + heapSize < 0) {
+            System.out.println("Invalid data store size: -stackSize and -heapSize must be non-negative.");
+            return;
+        }
+        if (maxInstructions < 0) {
+            System.out.println("Invalid instruction limit: -maxInstructions must be non-negative.");
+            return;
+        }
+        if (snapshotInterval < 0 || (resume || snapshotInterval > 0) && snapshotFile == null) {
+            System.out.println("Invalid snapshot options: -snapshotInterval must be non-negative, and -snapshotFile "
+                               + "must be given with -snapshotInterval and -resume.");
+            return;
+        }
+        var vm = new TamVm();
+        vm.setStackSize(stackSize);
+        vm.setHeapSize(heapSize);
+        vm.setGrowDataStore(growDataStore, maxDataStoreSize);
+        vm.setVerified(verify);
+        if (compiled) {
+            vm.setEngine(TamVm.Engine.COMPILED);
+        } else if (threaded) {
+            vm.setEngine(TamVm.Engine.THREADED);
+        } else if (tiered) {
+            vm.setEngine(TamVm.Engine.TIERED);
+        }
+        vm.setTierThreshold(tierThreshold);
+        vm.setProfiling(profile || foldedStacksFile != null);
+        TraceRecorder trace = null;
+        if (traceFile != null) {
+            if (traceSize <= 0) {
+                System.out.println("Invalid trace size: -traceSize must be positive.");
+                return;
+            }
+            trace = new TraceRecorder(traceSize);
+            vm.setTracer(trace);
+        }
+        if (maxInstructions > 0) {
+            vm.setInstructionLimit(maxInstructions);
+        }
+        if (!openChannels(vm)) {
+            return;
+        }
+        try {
+            if (!loadObjectProgram(vm, objectName)) {
+                return;
+            }
+            if (resume && !resumeRun(vm)) {
+                return;
+            }
+            if (showFusions) {
+                showFusions(vm);
+            }
+            if (vm.CT != TamVm.CB) {
+                startTimeNanos = System.nanoTime();
+                if (snapshotFile != null) {
+                    runWithSnapshots(vm);
+                } else {
+                    vm.run();
+                }
+            }
+        } finally {
+            closeChannels(vm);
+        }
+        if (trace != null) {
+            writeTrace(trace);
+        }
+        if (vm.CT != TamVm.CB) {
+            showStatus(vm);
+            if (showHeap) {
+                vm.heap.showStatistics(System.nanoTime() - startTimeNanos);
+            }
+            if (vm.profiler != null) {
+                showProfile(vm);
+            }
+        }
+    }
+
+    static boolean openChannels(TamVm vm) {
+        // Connects the input and output of the program to the files named by inputFile and outputFile, or to the
+        // console. Output to an interactive console is written out at the end of each line, and GETINT prompts for
+        // its input unless that is read from a file or prompts are turned off.
+
+        try {
+            if (inputFile != null) {
+                vm.setInput(new FileInputStream(inputFile));
+            }
+            if (outputFile != null && snapshotFile != null) {
+                // a resumed run keeps the output written before the snapshot
+                outputChannel = resume ? FileChannel.open(Path.of(outputFile), StandardOpenOption.WRITE,
+                                                          StandardOpenOption.CREATE)
+                                       : FileChannel.open(Path.of(outputFile), StandardOpenOption.WRITE,
+                                                          StandardOpenOption.CREATE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING);
+                vm.setOutput(Channels.newOutputStream(outputChannel));
+            } else if (outputFile != null) {
+                vm.setOutput(new FileOutputStream(outputFile));
+            }
+        } catch (IOException s) {
+            System.err.println("Error opening program input or output: " + s);
+            return false;
         }
+        vm.setIOBufferSize(ioBufferSize);
+        vm.setPrompting(!noPrompt && inputFile == null, outputFile == null && System.console() != null);
+        return true;
     }
 
-    // PROGRAM STATUS
+    static void closeChannels(TamVm vm) {
+        // Writes out the remaining output of the program, and closes any files it was using.
 
-    static int content(int r) {
-        var register = Register.values()[r];
-        return content(register);
+        if (vm.io == null) {
+            return;
+        }
+        try {
+            vm.io.close();
+        } catch (IOException s) {
+            vm.status = TamVm.failedIOError;
+        }
     }
 
-    static int content(Register r) {
-        // Returns the current content of register r,
-        // even if r is one of the pseudo-registers L1..L6.
-
-        switch (r) {
-            case CB:
-                return CB;
-            case CT:
-                return CT;
-            case PB:
-                return Machine.PB;
-            case PT:
-                return Machine.PT;
-            case SB:
-                return SB;
-            case ST:
-                return ST;
-            case HB:
-                return HB;
-            case HT:
-                return HT;
-            case LB:
-                return LB;
-            case L1:
-                return data[LB];
-            case L2:
-                return data[data[LB]];
-            case L3:
-                return data[data[data[LB]]];
-            case L4:
-                return data[data[data[data[LB]]]];
-            case L5:
-                return data[data[data[data[data[LB]]]]];
-            case L6:
-                return data[data[data[data[data[data[LB]]]]]];
-            case CP:
-                return CP;
-            default:
-                return 0;
+    static boolean loadObjectProgram(TamVm vm, String objectName) {
+        // Loads the TAM object program into the code store of the machine from the named file.
+
+        try {
+            vm.load(objectName);
+            return true;
+        } catch (NoSuchFileException s) {
+            System.err.println("Error opening object file: " + s);
+        } catch (IOException s) {
+            System.err.println("Error reading object file: " + s);
         }
+        return false;
     }
 
-    // INTERPRETATION
+    // SNAPSHOTS
 
-    static void dump() {
-        // Writes a summary of the machine state.
+    static boolean resumeRun(TamVm vm) {
+        // Carries on the run of the loaded program from the snapshot in snapshotFile, if there is one, cutting the
+        // output file back to the output the run had written by then.
 
-        System.out.println("");
-        System.out.println("State of data store and registers:");
-        System.out.println("");
-        if (HT == HB) {
-            System.out.println("            |--------|          (heap is empty)");
-        } else {
-            System.out.println("       HB-->");
-            System.out.println("            |--------|");
-            for (var addr = HB - 1; addr >= HT; addr--) {
-                System.out.print(addr + ":");
-                if (addr == HT) {
-                    System.out.print(" HT-->");
-                } else {
-                    System.out.print("      ");
+        if (!Files.exists(Path.of(snapshotFile))) {
+            return true;
+        }
+        try (var in = new FileInputStream(snapshotFile)) {
+            vm.restoreSnapshot(in);
+            if (outputChannel != null) {
+                var outputPosition = vm.io.outputPosition();
+                if (outputChannel.size() < outputPosition) {
+                    throw new IOException("output file " + outputFile + " holds less output than the snapshot records");
                 }
-                System.out.println("|" + data[addr] + "|");
+                outputChannel.truncate(outputPosition);
+                outputChannel.position(outputPosition);
             }
-            System.out.println("            |--------|");
+        } catch (IOException s) {
+            System.err.println("Error resuming from snapshot: " + s);
+            return false;
         }
-        System.out.println("            |////////|");
-        System.out.println("            |////////|");
-        if (ST == SB) {
-            System.out.println("            |--------|          (stack is empty)");
-        } else {
-            var dynamicLink = LB;
-            var staticLink = LB;
-            var localRegNum = Register.LB;
-            System.out.println("      ST--> |////////|");
-            System.out.println("            |--------|");
-            for (var addr = ST - 1; addr >= SB; addr--) {
-                System.out.print(addr + ":");
-                if (addr == SB) {
-                    System.out.print(" SB-->");
-                } else if (addr == staticLink) {
-                    switch (localRegNum) {
-                        case LB:
-                            System.out.print(" LB-->");
-                            break;
-                        case L1:
-                            System.out.print(" L1-->");
-                            break;
-                        case L2:
-                            System.out.print(" L2-->");
-                            break;
-                        case L3:
-                            System.out.print(" L3-->");
-                            break;
-                        case L4:
-                            System.out.print(" L4-->");
-                            break;
-                        case L5:
-                            System.out.print(" L5-->");
-                            break;
-                        case L6:
-                            System.out.print(" L6-->");
-                            break;
-                        default:
-                            break;
-                    }
-                    staticLink = data[addr];
-                    localRegNum = Register.values()[localRegNum.ordinal() + 1];
-                } else {
-                    System.out.print("      ");
+        System.out.println("Resuming from " + snapshotFile + " after " + vm.instructionCount() + " instructions.");
+        return true;
+    }
+
+    static void runWithSnapshots(TamVm vm) {
+        // Runs the program, saving a snapshot every snapshotInterval instructions, and when the interpreter is stopped
+        // by a signal while the program is still running. The signal runs a shutdown hook, which waits for the run to
+        // reach the end of a slice and save its snapshot. The hook cannot save a snapshot itself, since the run keeps
+        // its registers in locals while it executes, so if the run does not reach the end of a slice in time, as when
+        // it is blocked reading the console, the interpreter stops with the last snapshot saved.
+
+        var stopped = new CountDownLatch(1);
+        var hook = new Thread(() -> {
+            stopRequested = true;
+            try {
+                if (!stopped.await(stopTimeoutSeconds, TimeUnit.SECONDS)) {
+                    System.err.println("Run did not stop within " + stopTimeoutSeconds
+                                       + " seconds; no snapshot saved.");
                 }
-                if (addr == dynamicLink && dynamicLink != SB) {
-                    System.out.print("|SL=" + data[addr] + "|");
-                } else if (addr == dynamicLink + 1 && dynamicLink != SB) {
-                    System.out.print("|DL=" + data[addr] + "|");
-                } else if (addr == dynamicLink + 2 && dynamicLink != SB) {
-                    System.out.print("|RA=" + data[addr] + "|");
-                } else {
-                    System.out.print("|" + data[addr] + "|");
+            } catch (InterruptedException s) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+        try {
+            var slice = snapshotInterval > 0 ? Math.min(snapshotInterval, signalCheckInterval) : signalCheckInterval;
+            var lastSnapshot = vm.instructionCount();
+            while (vm.run(slice) == TamVm.Status.RUNNING) {
+                if (stopRequested) {
+                    saveSnapshot(vm);
+                    System.out.println("");
+                    System.out.println("Stopped; saved to " + snapshotFile + " after " + vm.instructionCount()
+                                       + " instructions.");
+                    break;
                 }
-                System.out.println("");
-                if (addr == dynamicLink) {
-                    System.out.println("            |--------|");
-                    dynamicLink = data[addr + 1];
+                if (snapshotInterval > 0 && vm.instructionCount() - lastSnapshot >= snapshotInterval) {
+                    saveSnapshot(vm);
+                    lastSnapshot = vm.instructionCount();
                 }
             }
+        } finally {
+            stopped.countDown();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException s) {
+            // the interpreter is being stopped, and the hook has done its work
         }
-        System.out.println("");
     }
 
-    static void showStatus() {
+    static void saveSnapshot(TamVm vm) {
+        // Saves the state of the run to snapshotFile, replacing the last snapshot only once the new one is complete,
+        // and after the output it records has been forced out to the output file.
+
+        var target = Path.of(snapshotFile);
+        var temporary = Path.of(snapshotFile + ".tmp");
+        try {
+            try (var out = Files.newOutputStream(temporary)) {
+                vm.saveSnapshot(out);
+            }
+            if (outputChannel != null) {
+                outputChannel.force(false);
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException s) {
+            System.err.println("Error saving snapshot: " + s);
+        }
+    }
+
+    // PROGRAM STATUS
+
+    static void showStatus(TamVm vm) {
         // Writes an indication of whether and why the program has terminated.
         System.out.println("");
-        switch (status) {
-            case running:
+        switch (vm.status()) {
+            case RUNNING:
                 System.out.println("Program is running.");
                 break;
-            case halted:
+            case HALTED:
                 System.out.println("Program has halted normally.");
                 System.out.println("Total execution time (ns): " + (System.nanoTime() - startTimeNanos));
                 break;
-            case failedDataStoreFull:
+            case FAILED_DATA_STORE_FULL:
                 System.out.println("Program has failed due to exhaustion of Data Store.");
                 break;
-            case failedInvalidCodeAddress:
+            case FAILED_INVALID_CODE_ADDRESS:
                 System.out.println("Program has failed due to an invalid code address.");
                 break;
-            case failedInvalidInstruction:
+            case FAILED_INVALID_INSTRUCTION:
                 System.out.println("Program has failed due to an invalid instruction.");
                 break;
-            case failedOverflow:
+            case FAILED_OVERFLOW:
                 System.out.println("Program has failed due to overflow.");
                 break;
-            case failedZeroDivide:
+            case FAILED_ZERO_DIVIDE:
                 System.out.println("Program has failed due to division by zero.");
                 break;
-            case failedIOError:
+            case FAILED_IO_ERROR:
                 System.out.println("Program has failed due to an IO error.");
                 break;
+            case FAILED_INSTRUCTION_LIMIT:
+                System.out.println("Program has failed due to exceeding its limit of " + maxInstructions
+                                   + " instructions.");
+                break;
         }
-        if (status != halted) {
-            dump();
+        if (vm.status() != TamVm.Status.HALTED) {
+            vm.dump();
         }
     }
 
-    static void checkSpace(int spaceNeeded) {
-        // Signals failure if there is not enough space to expand the stack or
-        // heap by spaceNeeded.
+    static void showProfile(TamVm vm) {
+        // Writes the report of the profile of the run, and its folded stacks to foldedStacksFile if one is named.
 
-        if (HT - ST < spaceNeeded) {
-            status = failedDataStoreFull;
+        if (profile) {
+            vm.profiler.showReport();
         }
-    }
-
-    static boolean isTrue(int datum) {
-        // Tests whether the given datum represents true.
-        return (datum == Machine.trueRep);
-    }
-
-    static boolean equal(int size, int addr1, int addr2) {
-        // Tests whether two multi-word objects are equal, given their common
-        // size and their base addresses.
-
-        boolean eq;
-        int index;
-
-        eq = true;
-        index = 0;
-        while (eq && (index < size)) {
-            if (data[addr1 + index] == data[addr2 + index]) {
-                index = index + 1;
-            } else {
-                eq = false;
+        if (foldedStacksFile != null) {
+            try {
+                vm.profiler.writeFoldedStacks(foldedStacksFile);
+            } catch (IOException s) {
+                System.err.println("Error writing folded stacks: " + s);
             }
         }
-
-        return eq;
-    }
-
-    static int overflowChecked(long datum) {
-        // Signals failure if the datum is too large to fit into a single word,
-        // otherwise returns the datum as a single word.
-
-        if ((-Machine.maxintRep <= datum) && (datum <= Machine.maxintRep)) {
-            return (int) datum;
-        } else {
-            status = failedOverflow;
-            return 0;
-        }
-    }
-
-    static int toInt(boolean b) {
-        return b ? Machine.trueRep : Machine.falseRep;
-    }
-
-    static int readInt() throws java.io.IOException {
-        int temp = 0;
-        int sign = 1;
-
-        do {
-            currentChar = System.in.read();
-        } while (Character.isWhitespace((char) currentChar));
-
-        if ((currentChar == '-') || (currentChar == '+')) {
-            do {
-                sign = (currentChar == '-') ? -1 : 1;
-                currentChar = System.in.read();
-            } while ((currentChar == '-') || currentChar == '+');
-        }
-
-        if (Character.isDigit((char) currentChar)) {
-            do {
-                temp = temp * 10 + (currentChar - '0');
-                currentChar = System.in.read();
-            } while (Character.isDigit((char) currentChar));
-        }
-
-        return sign * temp;
     }
 
-    static void callPrimitive(int primitiveDisplacement) {
-        // Invokes the given primitive routine.
-
-        int addr, size;
-        char ch;
+    static void writeTrace(TraceRecorder trace) {
+        // Writes the most recent events of the run to traceFile.
 
-        var primitive = Primitive.values()[primitiveDisplacement];
-        switch (primitive) {
-            case ID:
-                break; // nothing to be done
-            case NOT:
-                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
-                break;
-            case AND:
-                ST = ST - 1;
-                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
-                break;
-            case OR:
-                ST = ST - 1;
-                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
-                break;
-            case SUCC:
-                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
-                break;
-            case PRED:
-                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
-                break;
-            case NEG:
-                data[ST - 1] = -data[ST - 1];
-                break;
-            case ADD:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator + data[ST]);
-                break;
-            case SUB:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator - data[ST]);
-                break;
-            case MULT:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator * data[ST]);
-                break;
-            case DIV:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                if (data[ST] != 0) {
-                    data[ST - 1] = (int) (accumulator / data[ST]);
-                } else {
-                    status = failedZeroDivide;
-                }
-                break;
-            case MOD:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                if (data[ST] != 0) {
-                    data[ST - 1] = (int) (accumulator % data[ST]);
-                } else {
-                    status = failedZeroDivide;
-                }
-                break;
-            case LT:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
-                break;
-            case LE:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
-                break;
-            case GE:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
-                break;
-            case GT:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
-                break;
-            case EQ:
-                size = data[ST - 1]; // size of each comparand
-                ST = ST - 2 * size;
-                data[ST - 1] = toInt(equal(size, ST - 1, ST - 1 + size));
-                break;
-            case NE:
-                size = data[ST - 1]; // size of each comparand
-                ST = ST - 2 * size;
-                data[ST - 1] = toInt(!equal(size, ST - 1, ST - 1 + size));
-                break;
-            case EOL:
-                data[ST] = toInt(currentChar == '\n');
-                ST = ST + 1;
-                break;
-            case EOF:
-                data[ST] = toInt(currentChar == -1);
-                ST = ST + 1;
-                break;
-            case GET:
-                ST = ST - 1;
-                addr = data[ST];
-                try {
-                    currentChar = System.in.read();
-                } catch (java.io.IOException s) {
-                    status = failedIOError;
-                }
-                data[addr] = currentChar;
-                break;
-            case PUT:
-                ST = ST - 1;
-                ch = (char) data[ST];
-                System.out.print(ch);
-                break;
-            case GETEOL:
-                try {
-                    while ((currentChar = System.in.read()) != '\n')
-                        ;
-                } catch (java.io.IOException s) {
-                    status = failedIOError;
-                }
-                break;
-            case PUTEOL:
-                System.out.println("");
-                break;
-            case GETINT:
-                System.out.println("enter int: ");
-                ST = ST - 1;
-                addr = data[ST];
-                try {
-                    accumulator = readInt();
-                } catch (java.io.IOException s) {
-                    status = failedIOError;
-                }
-                data[addr] = (int) accumulator;
-                break;
-            case PUTINT:
-                ST = ST - 1;
-                accumulator = data[ST];
-                System.out.print(accumulator);
-                break;
-            case NEW:
-                size = data[ST - 1];
-                checkSpace(size);
-                HT = HT - size;
-                data[ST - 1] = HT;
-                break;
-            case DISPOSE:
-                ST = ST - 1; // no action taken at present
-                break;
+        try {
+            trace.write(traceFile);
+        } catch (IOException s) {
+            System.err.println("Error writing trace file: " + s);
         }
     }
 
-    // LOADING
-
-    static void interpretProgram() {
-        // Runs the program in code store.
-
-        Instruction currentInstr;
-
-        // Initialize registers ...
-        ST = SB;
-        HT = HB;
-        LB = SB;
-        CP = CB;
-        status = running;
-        do {
-            // Fetch instruction ...
-            currentInstr = Machine.code[CP];
-            // Decode instruction ...
-            var op = currentInstr.opCode;
-            var r = currentInstr.register;
-            var n = currentInstr.length;
-            var d = currentInstr.operand;
-            int addr;
-
-            // Execute instruction ...
-            switch (op) {
-                case LOAD:
-                    addr = d + content(r);
-                    checkSpace(n);
-                    for (var index = 0; index < n; index++) {
-                        data[ST + index] = data[addr + index];
-                    }
-                    ST = ST + n;
-                    CP = CP + 1;
-                    break;
-                case LOADA:
-                    addr = d + content(r);
-                    checkSpace(1);
-                    data[ST] = addr;
-                    ST = ST + 1;
-                    CP = CP + 1;
-                    break;
-                case LOADI:
-                    ST = ST - 1;
-                    addr = data[ST];
-                    checkSpace(n);
-                    for (var index = 0; index < n; index++) {
-                        data[ST + index] = data[addr + index];
-                    }
-                    ST = ST + n;
-                    CP = CP + 1;
-                    break;
-                case LOADL:
-                    checkSpace(1);
-                    data[ST] = d;
-                    ST = ST + 1;
-                    CP = CP + 1;
-                    break;
-                case STORE:
-                    addr = d + content(r);
-                    ST = ST - n;
-                    for (var index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    CP = CP + 1;
-                    break;
-                case STOREI:
-                    ST = ST - 1;
-                    addr = data[ST];
-                    ST = ST - n;
-                    for (var index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    CP = CP + 1;
-                    break;
-                case CALL:
-                    addr = d + content(r);
-                    if (addr >= Machine.PB) {
-                        callPrimitive(addr - Machine.PB);
-                        CP = CP + 1;
-                    } else {
-                        checkSpace(3);
-                        if (0 <= n && n <= 15) {
-                            data[ST] = content(n); // static link
-                        } else {
-                            status = failedInvalidInstruction;
-                        }
-                        data[ST + 1] = LB; // dynamic link
-                        data[ST + 2] = CP + 1; // return address
-                        LB = ST;
-                        ST = ST + 3;
-                        CP = addr;
-                    }
-                    break;
-                case CALLI:
-                    ST = ST - 2;
-                    addr = data[ST + 1];
-                    if (addr >= Machine.PB) {
-                        callPrimitive(addr - Machine.PB);
-                        CP = CP + 1;
-                    } else {
-                        // data[ST] = static link already
-                        data[ST + 1] = LB; // dynamic link
-                        data[ST + 2] = CP + 1; // return address
-                        LB = ST;
-                        ST = ST + 3;
-                        CP = addr;
-                    }
-                    break;
-                case RETURN:
-                    addr = LB - d;
-                    CP = data[LB + 2];
-                    LB = data[LB + 1];
-                    ST = ST - n;
-                    for (var index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    ST = addr + n;
-                    break;
-                case PUSH:
-                    checkSpace(d);
-                    ST = ST + d;
-                    CP = CP + 1;
-                    break;
-                case POP:
-                    addr = ST - n - d;
-                    ST = ST - n;
-                    for (var index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    ST = addr + n;
-                    CP = CP + 1;
-                    break;
-                case JUMP:
-                    CP = d + content(r);
-                    break;
-                case JUMPI:
-                    ST = ST - 1;
-                    CP = data[ST];
-                    break;
-                case JUMPIF:
-                    ST = ST - 1;
-                    if (data[ST] == n) {
-                        CP = d + content(r);
-                    } else {
-                        CP = CP + 1;
-                    }
-                    break;
-                case HALT:
-                    status = halted;
-                    break;
-            }
-            if (CP < CB || CP >= CT) {
-                status = failedInvalidCodeAddress;
-            }
-        } while (status == running);
-    }
+    static void showFusions(TamVm vm) {
+        // Writes how many of each superinstruction the loader fused.
 
-    // RUNNING
-
-    static void loadObjectProgram(String objectName) {
-        // Loads the TAM object program into code store from the named file.
-
-        boolean finished = false;
-
-        try (var objectFile = new FileInputStream(objectName)) {
-            var objectStream = new DataInputStream(objectFile);
-
-            var addr = Machine.CB;
-            while (!finished) {
-                Machine.code[addr] = Instruction.read(objectStream);
-                if (Machine.code[addr] == null) {
-                    finished = true;
-                } else {
-                    addr = addr + 1;
-                }
-            }
-            CT = addr;
-        } catch (FileNotFoundException s) {
-            CT = CB;
-            System.err.println("Error opening object file: " + s);
-        } catch (IOException s) {
-            CT = CB;
-            System.err.println("Error reading object file: " + s);
+        System.out.println("Superinstructions fused:");
+        for (var kind = 0; kind < TamVm.superinstructionNames.length; kind++) {
+            System.out.println("  " + TamVm.superinstructionNames[kind] + ": " + vm.image.fusionCounts[kind]);
         }
     }
 
@@ -0,0 +1,205 @@
+/*
+ * @(#)MachineIO.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ The input and output channels of a running TAM program, used by the primitive routines GET, GETEOL, GETINT, PUT,
+ PUTEOL and PUTINT.
+ <p>
+ Input is read from the underlying stream a block at a time, and output is collected in a buffer that is written out
+ when it is full, when the program needs more input (so that a prompt is seen before the program waits for an answer),
+ when {@link #flush()} is called at the end of a run and, if requested, at the end of each line.
+ <p>
+ The channels count the bytes the program has read and written, so that a run resumed from a snapshot can carry on
+ from the same place in its input and output.
+ */
+final class MachineIO {
+
+    private static final byte[] lineSeparator = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+    private final InputStream  in;
+    private final OutputStream out;
+    private final boolean      flushOnNewline;
+
+    private final byte[] inBuffer;
+    private int          inPosition, inLimit;
+    private final byte[] outBuffer;
+    private int          outPosition;
+    private int          lastRead;
+    // the number of bytes read into the input buffer and written out of the output buffer, counting those passed over
+    // by resume
+    private long         inputFilled, outputFlushed;
+
+    MachineIO(InputStream in, OutputStream out, int bufferSize, boolean flushOnNewline) {
+        this.in = in;
+        this.out = out;
+        this.flushOnNewline = flushOnNewline;
+        this.inBuffer = new byte[Math.max(bufferSize, 1)];
+        this.outBuffer = new byte[Math.max(bufferSize, lineSeparator.length)];
+    }
+
+    int read() throws IOException {
+        // Returns the next byte of input, or -1 at the end of the input.
+
+        if (inPosition == inLimit && !fill()) {
+            return -1;
+        }
+        var b = inBuffer[inPosition] & 0xFF;
+        inPosition = inPosition + 1;
+        return b;
+    }
+
+    int readInt() throws IOException {
+        // Parses an integer in the form accepted by GETINT: any whitespace, then any number of signs of which the last
+        // counts, then any decimal digits. The digits are taken straight from the input buffer, and the byte after
+        // them is consumed, and can be had from lastRead.
+
+        int value = 0;
+        int sign = 1;
+        int b;
+
+        do {
+            b = read();
+        } while (Character.isWhitespace((char) b));
+
+        while (b == '-' || b == '+') {
+            sign = (b == '-') ? -1 : 1;
+            b = read();
+        }
+
+        while (b >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            if (inPosition == inLimit && !fill()) {
+                b = -1;
+                break;
+            }
+            b = inBuffer[inPosition] & 0xFF;
+            inPosition = inPosition + 1;
+        }
+
+        lastRead = b;
+        return sign * value;
+    }
+
+    int lastRead() {
+        // Returns the byte consumed after the digits by the last readInt, or -1 if it reached the end of the input.
+
+        return lastRead;
+    }
+
+    private boolean fill() throws IOException {
+        // Reads the next block of input into the empty input buffer, first writing out any buffered output so that a
+        // prompt is seen before the program waits. Returns false at the end of the input.
+
+        flush();
+        inPosition = 0;
+        inLimit = Math.max(in.read(inBuffer), 0);
+        inputFilled = inputFilled + inLimit;
+        return inLimit > 0;
+    }
+
+    long inputPosition() {
+        // Returns the number of bytes of input the program has read.
+
+        return inputFilled - (inLimit - inPosition);
+    }
+
+    long outputPosition() {
+        // Returns the number of bytes of output the program has written, including those still in the buffer.
+
+        return outputFlushed + outPosition;
+    }
+
+    void resume(long inputPosition, long outputPosition) throws IOException {
+        // Makes the channels carry on from the given numbers of bytes of input read and output written, by passing over
+        // that much of the input stream, which must hold the input of the run from its start. The output stream is
+        // taken to be positioned after the output already written.
+
+        in.skipNBytes(inputPosition);
+        inPosition = 0;
+        inLimit = 0;
+        inputFilled = inputPosition;
+        outPosition = 0;
+        outputFlushed = outputPosition;
+    }
+
+    void write(char ch) throws IOException {
+        // Writes a character, encoded as System.out would encode it.
+
+        if (ch < 0x80) {
+            writeByte(ch);
+        } else {
+            write(String.valueOf(ch));
+        }
+    }
+
+    void write(String s) throws IOException {
+        for (var b : s.getBytes(Charset.defaultCharset())) {
+            writeByte(b);
+        }
+    }
+
+    void writeLine() throws IOException {
+        // Ends the current line of output.
+
+        for (var b : lineSeparator) {
+            writeByte(b);
+        }
+        if (flushOnNewline) {
+            flush();
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (outPosition == outBuffer.length) {
+            flush();
+        }
+        outBuffer[outPosition] = (byte) b;
+        outPosition = outPosition + 1;
+    }
+
+    void flush() throws IOException {
+        // Writes out any buffered output.
+
+        if (outPosition > 0) {
+            out.write(outBuffer, 0, outPosition);
+            outputFlushed = outputFlushed + outPosition;
+            outPosition = 0;
+        }
+        out.flush();
+    }
+
+    void close() throws IOException {
+        // Writes out any buffered output, and closes the streams other than those of the console.
+
+        flush();
+        if (in != System.in) {
+            in.close();
+        }
+        if (out != System.out) {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * @(#)Profiler.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import static triangle.abstractMachine.TamVm.CB;
+import static triangle.abstractMachine.TamVm.PRIMITIVEop;
+import static triangle.abstractMachine.TamVm.decodedWidth;
+
+/**
+ A {@link Tracer} that counts where the time of a run of a program on a {@link TamVm} goes: how often the instruction
+ at each code address is executed, how often each opcode and each primitive routine is executed, and how many
+ instructions each routine executes, itself and together with the routines it calls.
+ <p>
+ Instructions are counted as they appear in the object program, since a traced run reports each instruction of a
+ superinstruction's sequence separately. A routine is known only by the code address it starts at, since an object
+ program holds no names, and the main program counts as a routine starting at CB. The routine that is running is
+ followed by a stack of the routines entered by CALL and CALLI and not yet left by RETURN, and the instructions executed
+ on each distinct stack of routines are kept in a tree, which is written out as folded stacks, one line per stack, as
+ taken by flame graph tools.
+ */
+final class Profiler implements Tracer {
+
+    private static final int shownAddresses = 20;
+
+    // the decoded code of the program being profiled
+    private final int[] code;
+
+    // the number of instructions executed in all, and at each code address, by opcode and by primitive routine
+    long                total;
+    private final long[] addressCounts;
+    private final long[] opcodeCounts    = new long[OpCode.values().length];
+    private final long[] primitiveCounts = new long[Primitive.values().length];
+
+    // the calls to each routine, by code address, and the instructions it executes itself and with its callees
+    private final long[] calls, inclusive, exclusive;
+    // the number of times each routine is on the stack of routines, so that recursion is counted once in inclusive
+    private final int[]  active;
+
+    // the stack of routines, with the value of total when each was entered
+    private int[]   routines    = new int[16];
+    private long[]  entryTotals = new long[16];
+    private int     depth;
+
+    // the tree of stacks of routines, and the node for the current stack
+    private final StackNode root = new StackNode(CB, null);
+    private StackNode       node = root;
+
+    // a distinct stack of routines, and the instructions executed with it as the stack
+    private static final class StackNode {
+
+        final int                       routine;
+        final StackNode                 parent;
+        final Map<Integer, StackNode>   children = new HashMap<>();
+        long                            count;
+
+        StackNode(int routine, StackNode parent) {
+            this.routine = routine;
+            this.parent = parent;
+        }
+
+    }
+
+    Profiler(int[] code, int CT) {
+        this.code = code;
+        addressCounts = new long[CT];
+        calls = new long[CT];
+        inclusive = new long[CT];
+        exclusive = new long[CT];
+        active = new int[CT];
+        routines[0] = CB;
+        depth = 1;
+        active[CB] = 1;
+        calls[CB] = 1;
+    }
+
+    // COUNTING
+
+    @Override
+    public void instructionExecuted(int cp) {
+        // Counts the execution of the instruction at cp.
+
+        addressCounts[cp]++;
+        var op = TamVm.unfused(code[cp * decodedWidth]);
+        if (op >= PRIMITIVEop) {
+            opcodeCounts[Machine.CALLop]++;
+            primitiveCounts[op - PRIMITIVEop]++;
+        } else {
+            opcodeCounts[op]++;
+        }
+        total = total + 1;
+        exclusive[routines[depth - 1]]++;
+        node.count = node.count + 1;
+    }
+
+    @Override
+    public void primitiveCalled(int addr, int primitiveDisplacement) {
+        // Counts a call of a primitive routine made through a CALL or CALLI whose address is known only at run time.
+
+        if (primitiveDisplacement >= 0 && primitiveDisplacement < primitiveCounts.length) {
+            primitiveCounts[primitiveDisplacement]++;
+        }
+    }
+
+    @Override
+    public void routineCalled(int addr, int routine) {
+        // Records a call of the routine starting at the given code address.
+
+        if (routine < CB || routine >= calls.length) {
+            // the call fails with an invalid code address
+            return;
+        }
+        if (depth == routines.length) {
+            routines = Arrays.copyOf(routines, depth * 2);
+            entryTotals = Arrays.copyOf(entryTotals, depth * 2);
+        }
+        routines[depth] = routine;
+        entryTotals[depth] = total;
+        depth = depth + 1;
+        calls[routine]++;
+        active[routine]++;
+        node = node.children.computeIfAbsent(routine, r -> new StackNode(r, node));
+    }
+
+    @Override
+    public void routineReturned(int addr, int returnAddress) {
+        // Records a return from the routine that is running.
+
+        if (depth == 1) {
+            // a RETURN from the main program leaves it running in the eyes of the profiler
+            return;
+        }
+        depth = depth - 1;
+        var routine = routines[depth];
+        active[routine]--;
+        if (active[routine] == 0) {
+            inclusive[routine] += total - entryTotals[depth];
+        }
+        node = node.parent;
+    }
+
+    // REPORTING
+
+    private long inclusiveOf(int routine) {
+        // Returns the instructions executed by the given routine and its callees so far, including those of calls that
+        // have not yet returned.
+
+        var count = inclusive[routine];
+        for (var level = 0; level < depth; level++) {
+            if (routines[level] == routine) {
+                return count + total - entryTotals[level];
+            }
+        }
+        return count;
+    }
+
+    private static String routineName(int routine) {
+        return routine == CB ? "main" : "routine@" + routine;
+    }
+
+    private String percentage(long count) {
+        return total == 0 ? "" : String.format("%6.2f%%", 100.0 * count / total);
+    }
+
+    void showReport() {
+        // Writes the counts of the run so far.
+
+        System.out.println("");
+        System.out.println("Profile of " + total + " instructions:");
+
+        System.out.println("");
+        System.out.println("Routines:         calls      inclusive      exclusive");
+        var routineOrder = new ArrayList<Integer>();
+        for (var addr = 0; addr < calls.length; addr++) {
+            if (calls[addr] > 0) {
+                routineOrder.add(addr);
+            }
+        }
+        routineOrder.sort(Comparator.comparingLong((Integer r) -> exclusive[r]).reversed());
+        for (var routine : routineOrder) {
+            System.out.println(String.format("  %-12s %8d %14d %14d %s", routineName(routine), calls[routine],
+                                             inclusiveOf(routine), exclusive[routine], percentage(exclusive[routine])));
+        }
+
+        System.out.println("");
+        System.out.println("Opcodes:");
+        for (var op : OpCode.values()) {
+            if (opcodeCounts[op.ordinal()] > 0) {
+                System.out.println(String.format("  %-12s %14d %s", op, opcodeCounts[op.ordinal()],
+                                                 percentage(opcodeCounts[op.ordinal()])));
+            }
+        }
+
+        System.out.println("");
+        System.out.println("Primitive routines:");
+        for (var primitive : Primitive.values()) {
+            if (primitiveCounts[primitive.ordinal()] > 0) {
+                System.out.println(String.format("  %-12s %14d", primitive, primitiveCounts[primitive.ordinal()]));
+            }
+        }
+
+        System.out.println("");
+        System.out.println("Hottest code addresses:");
+        var addressOrder = new ArrayList<Integer>();
+        for (var addr = 0; addr < addressCounts.length; addr++) {
+            if (addressCounts[addr] > 0) {
+                addressOrder.add(addr);
+            }
+        }
+        addressOrder.sort(Comparator.comparingLong((Integer a) -> addressCounts[a]).reversed());
+        for (var addr : addressOrder.subList(0, Math.min(shownAddresses, addressOrder.size()))) {
+            var op = TamVm.unfused(code[addr * decodedWidth]);
+            var opName = op >= PRIMITIVEop ? "CALL " + Primitive.values()[op - PRIMITIVEop]
+                                           : OpCode.values()[op].toString();
+            System.out.println(String.format("  %6d: %-16s %14d %s", addr, opName, addressCounts[addr],
+                                             percentage(addressCounts[addr])));
+        }
+    }
+
+    void writeFoldedStacks(String fileName) throws IOException {
+        // Writes the instructions executed on each stack of routines to the named file, as lines of the routine names
+        // separated by semicolons, outermost first, followed by a space and the count.
+
+        try (var out = new PrintWriter(new FileWriter(fileName))) {
+            writeFoldedStacks(out, root, routineName(root.routine));
+        }
+    }
+
+    private static void writeFoldedStacks(PrintWriter out, StackNode node, String stack) {
+        if (node.count > 0) {
+            out.println(stack + " " + node.count);
+        }
+        for (var child : node.children.values()) {
+            writeFoldedStacks(out, child, stack + ";" + routineName(child.routine));
+        }
+    }
+
+}
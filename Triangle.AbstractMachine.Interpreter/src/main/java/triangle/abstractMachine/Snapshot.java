@@ -0,0 +1,149 @@
+/*
+ * @(#)Snapshot.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HexFormat;
+
+/**
+ Writes the state of a run of a program on a {@link TamVm} to a snapshot, and restores a run from one, so that a long
+ run can be carried on later, by another process or on another machine, from where it had got to.
+ <p>
+ A snapshot holds, in big-endian order as written by {@link DataOutputStream}: the int magic number 0x54414D53
+ ("TAMS"), the short version 1, the 32 bytes of the SHA-256 digest of the object program, the ints SB, HB and size of
+ the data store, the ints CP, ST, HT, LB and status, the long number of instructions executed, the int currentChar and
+ long accumulator of the primitive routines, and the longs number of bytes of input read and of output written. Then
+ follow the live objects and free blocks of the heap and its counters, as written by {@link HeapAllocator}, and last
+ the words of the stack, from SB up to ST, and of the heap, from HT up to HB. The rest of the data store is not in use
+ by the program and is not kept, nor are the counts of the profiler and the tiered engine, which start afresh.
+ */
+final class Snapshot {
+
+    static final int   magic   = 0x54414D53;
+    static final short version = 1;
+
+    private Snapshot() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static void write(TamVm vm, OutputStream stream) throws IOException {
+        // Writes the state of the run of the program on the given machine to the given stream, which is not closed.
+
+        var out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(magic);
+        out.writeShort(version);
+        out.write(HexFormat.of().parseHex(vm.image.digest));
+        out.writeInt(vm.SB);
+        out.writeInt(vm.HB);
+        out.writeInt(vm.data.length);
+        out.writeInt(vm.CP);
+        out.writeInt(vm.ST);
+        out.writeInt(vm.HT);
+        out.writeInt(vm.LB);
+        out.writeInt(vm.status);
+        out.writeLong(vm.executed);
+        out.writeInt(vm.currentChar);
+        out.writeLong(vm.accumulator);
+        out.writeLong(vm.io.inputPosition());
+        out.writeLong(vm.io.outputPosition());
+        vm.heap.write(out);
+        writeWords(out, vm.data, vm.SB, vm.ST);
+        writeWords(out, vm.data, vm.HT, vm.HB);
+        out.flush();
+    }
+
+    static void read(TamVm vm, InputStream stream) throws IOException {
+        // Replaces the state of the run of the program on the given machine, which has been reset, by that read from
+        // the given stream, which is not closed. Signals that the snapshot is not of the program loaded, with the same
+        // data store layout, or is corrupt.
+
+        var in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            if (in.readInt() != magic || in.readShort() != version) {
+                throw new IOException("Not a snapshot of version " + version);
+            }
+            var digest = new byte[32];
+            in.readFully(digest);
+            if (!HexFormat.of().formatHex(digest).equals(vm.image.digest)) {
+                throw new IOException("Snapshot is of a different object program");
+            }
+            var SB = in.readInt();
+            var HB = in.readInt();
+            var size = in.readInt();
+            if (SB != vm.SB || HB != vm.HB) {
+                throw new IOException("Snapshot is of a data store laid out differently, with SB " + SB + " and HB "
+                                      + HB);
+            }
+            if (size > vm.data.length) {
+                vm.expandDataStore(size);
+            }
+            if (size != vm.data.length && !vm.growDataStore || vm.status != TamVm.running) {
+                throw new IOException("Snapshot has a data store of " + size + " words, which does not fit");
+            }
+
+            var CP = in.readInt();
+            var ST = in.readInt();
+            var HT = in.readInt();
+            var LB = in.readInt();
+            var status = in.readInt();
+            if (ST < SB || ST > size || HT > HB || HT < (vm.growDataStore ? 0 : ST) || LB < SB || LB > ST
+                || status < 0 || status >= TamVm.Status.values().length
+                || status == TamVm.running && (CP < TamVm.CB || CP >= vm.CT)) {
+                throw new IOException("Snapshot holds invalid registers");
+            }
+            vm.CP = CP;
+            vm.ST = ST;
+            vm.HT = HT;
+            vm.LB = LB;
+            vm.status = status;
+            vm.stackLimit = vm.growDataStore ? vm.data.length : HT;
+            vm.executed = in.readLong();
+            vm.currentChar = in.readInt();
+            vm.accumulator = in.readLong();
+            var inputPosition = in.readLong();
+            var outputPosition = in.readLong();
+            vm.heap.read(in);
+            readWords(in, vm.data, SB, ST);
+            readWords(in, vm.data, HT, HB);
+            vm.io.resume(inputPosition, outputPosition);
+        } catch (EOFException s) {
+            throw new IOException("Snapshot is truncated", s);
+        }
+    }
+
+    private static void writeWords(DataOutputStream out, int[] data, int from, int to) throws IOException {
+        for (var addr = from; addr < to; addr++) {
+            out.writeInt(data[addr]);
+        }
+    }
+
+    private static void readWords(DataInputStream in, int[] data, int from, int to) throws IOException {
+        for (var addr = from; addr < to; addr++) {
+            data[addr] = in.readInt();
+        }
+    }
+
+}
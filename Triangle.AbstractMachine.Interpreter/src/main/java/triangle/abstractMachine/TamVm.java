@@ -0,0 +1,1455 @@
+/*
+ * @(#)TamVm.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ A TAM virtual machine, holding its own code store, data store, registers and input and output channels, so that any
+ number of programs can be loaded and run side by side in one JVM.
+ <p>
+ A program is run by configuring the machine with the setters, loading the object program with {@link #load}, and
+ calling {@link #run()} to run it until it stops, or {@link #run(long)} to run it for at most a given number of
+ instructions at a time. {@link #reset()} starts the loaded program again from the beginning, and {@link #saveSnapshot}
+ and {@link #restoreSnapshot} save a run part way through and carry it on later. The setters take effect at the next
+ {@link #load}, and all but those of the data store sizes also at the next {@link #reset()}.
+ <p>
+ A machine is not safe for use by more than one thread at a time, but separate machines share no mutable state.
+ */
+public final class TamVm {
+
+    /** The states of a run of a program, in the order of the status values. */
+    public enum Status {
+        RUNNING, HALTED, FAILED_DATA_STORE_FULL, FAILED_INVALID_CODE_ADDRESS, FAILED_INVALID_INSTRUCTION,
+        FAILED_OVERFLOW, FAILED_ZERO_DIVIDE, FAILED_IO_ERROR, FAILED_INSTRUCTION_LIMIT
+    }
+
+    /** The ways of executing a program: see {@link Interpreter} for a description of each. */
+    public enum Engine {
+        SWITCH, TIERED, THREADED, COMPILED
+    }
+
+    final static int CB = 0;
+    int              SB = 0, HB = 0; // set by allocateDataStore()
+    // the primitive routines start at PB, just above the code store; set by load() from the program loaded
+    int              PB = Machine.PB, PT = Machine.PT;
+    // status values
+    final static int running         = 0, halted = 1, failedDataStoreFull = 2, failedInvalidCodeAddress = 3,
+            failedInvalidInstruction = 4, failedOverflow = 5, failedZeroDivide = 6, failedIOError = 7,
+            failedInstructionLimit = 8;
+
+    // DATA STORE REGISTERS AND OTHER REGISTERS
+    int[] data = new int[0];
+    int   CT, CP, ST, HT, LB, status;
+    // the address the stack may not grow past: HT, or the end of the data store when it can grow
+    int   stackLimit;
+    // the address below which the stack has been checked to have space, which the heap may not grow past; only
+    // above ST when running a verified program
+    int   stackReserve;
+    long  accumulator;
+    int   currentChar;
+
+    // the channels of the primitive routines for input and output
+    MachineIO io;
+
+    // INSTRUCTION COUNTS
+
+    // executed counts the instructions executed in the current run. Each engine runs until stepsLeft, the number of
+    // instructions left in the current slice, is used up, and counts down stepsLeft as it goes, by the instructions
+    // actually executed.
+    long executed;
+    long stepsLeft;
+
+    // the free list of the heap
+    final HeapAllocator heap = new HeapAllocator(this);
+
+    // the counts of the current run when profiling, or null, and the tracer that receives the events of the current
+    // run, which is the profiler and the tracer set by setTracer, either of them, or null
+    Profiler profiler;
+    Tracer   tracer;
+    // when there is a tracer, the handlers that run the program reporting to it, built when the run starts, or null
+    ThreadedInterpreter.Handler[] tracedHandlers;
+
+    // CONFIGURATION
+
+    private int          stackSize        = 512, heapSize = 512;
+    boolean              growDataStore;
+    private int          maxDataStoreSize = 1 << 24;
+    private long         instructionLimit = Long.MAX_VALUE;
+    private Engine       engine           = Engine.SWITCH;
+    private int          tierThreshold    = 1000;
+    private InputStream  input            = System.in;
+    private OutputStream output           = System.out;
+    private int          ioBufferSize     = 8192;
+    private boolean      prompting        = true, flushOnNewline;
+    private boolean      profiling;
+    private boolean      verified;
+    private Tracer       configuredTracer;
+
+    // PRE-DECODED CODE STORE
+
+    // Each instruction in the code store is decoded at load time into decodedWidth consecutive words of decodedCode,
+    // holding its opcode, register number, length and operand. Operands relative to a register whose content is fixed
+    // (CB, PB, PT, SB, HB) have that content added at load time, and their register number is replaced by
+    // absoluteRegister, so that the address is just the operand. The decoded code is held in a CodeImage shared by
+    // every machine that loads the same object program with the same data store layout, and is never changed once
+    // decoded.
+    final static int decodedWidth     = 4;
+    final static int absoluteRegister = -1;
+    CodeImage        image;
+    int[]            decodedCode      = new int[0];
+
+    // DISPLAY
+
+    // display[k] caches the base of the frame reached by following k static links from LB, for k < displayLevels. The
+    // display is filled in as the pseudo-registers L1..L6 are used, and is emptied by every CALL, CALLI and RETURN, so
+    // that repeated up-level accesses from a routine cost one array read however deeply it is nested. Link data is
+    // never stored into by TAM code, so the cached bases remain valid until LB changes.
+    final int[] display = new int[Machine.maxRoutineLevel];
+    int         displayLevels;
+
+    // SUPERINSTRUCTIONS
+
+    // After decoding, the opcode of the first instruction of each of these common sequences is replaced by that of a
+    // superinstruction, which executes the whole sequence in one dispatch:
+    //   LOADLCALLop   LOADL k; CALL p                                    (p a binary integer primitive, whose
+    //                                                                     displacement is put in the length field)
+    //   INDEXop       LOADL k; CALL mult; CALL add
+    //   LOADALOADIop  LOADA d[r]; LOADI n
+    //   INCREMENTop   LOAD (1) d[r]; LOADL k; CALL add; STORE (1) d'[r']
+    // The rest of each sequence is left in place, so that a jump into the middle of it still finds the original
+    // instructions. A superinstruction counts as each of the instructions of its sequence that it executes, so that
+    // instruction counts and limits do not depend on fusion or on the engine.
+    final static int LOADLCALLop = 16, INDEXop = 17, LOADALOADIop = 18, INCREMENTop = 19;
+    // the number of instructions in the longest sequence
+    final static int longestSequence = 4;
+    // A CALL to a primitive routine is decoded as an opcode of its own, PRIMITIVEop plus the routine's displacement.
+    final static int PRIMITIVEop = 32;
+    final static int[] binaryIntegerPrimitives = { Machine.addDisplacement, Machine.subDisplacement,
+            Machine.multDisplacement, Machine.ltDisplacement, Machine.leDisplacement, Machine.geDisplacement,
+            Machine.gtDisplacement };
+    final static String[] superinstructionNames = { "LOADL; CALL p", "LOADL; CALL mult; CALL add", "LOADA; LOADI",
+            "LOAD; LOADL; CALL add; STORE" };
+
+    // VERIFICATION
+
+    // In verified mode, stackNeeds holds the number of words the stack can grow by from each code address before the
+    // next CALL, CALLI, RETURN or HALT, as found by the Verifier when the program was loaded; otherwise it is null.
+    int[] stackNeeds;
+
+    // TIERED EXECUTION
+
+    // In tiered mode, hotness counts the calls to each routine and the backward jumps to each loop, by code address.
+    int[] hotness;
+
+    // CONFIGURATION
+
+    public void setStackSize(int stackSize) {
+        // Sets the number of words of data store reserved for the stack.
+
+        if (stackSize < 0) {
+            throw new IllegalArgumentException("Negative stack size: " + stackSize);
+        }
+        this.stackSize = stackSize;
+    }
+
+    public void setHeapSize(int heapSize) {
+        // Sets the number of words of data store reserved for the heap.
+
+        if (heapSize < 0) {
+            throw new IllegalArgumentException("Negative heap size: " + heapSize);
+        }
+        this.heapSize = heapSize;
+    }
+
+    public void setGrowDataStore(boolean growDataStore, int maxDataStoreSize) {
+        // Sets whether the stack grows on demand instead of failing when it is full, and the number of words beyond
+        // which it does not grow.
+
+        this.growDataStore = growDataStore;
+        this.maxDataStoreSize = maxDataStoreSize;
+    }
+
+    public void setInstructionLimit(long instructionLimit) {
+        // Sets the number of instructions after which a run fails, or Long.MAX_VALUE for no limit.
+
+        if (instructionLimit < 0) {
+            throw new IllegalArgumentException("Negative instruction limit: " + instructionLimit);
+        }
+        this.instructionLimit = instructionLimit;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public void setProfiling(boolean profiling) {
+        // Sets whether each run counts where its time goes. A profiled run is traced by the profiler, and so carried
+        // out by the traced handlers of the threaded engine.
+
+        this.profiling = profiling;
+    }
+
+    public void setVerified(boolean verified) {
+        // Sets whether programs are verified when they are loaded, so that the switch engine can run them without
+        // checking the code address after every instruction and the stack space at every push. A program that fails
+        // verification is not loaded. A verified run checks the stack space for each stretch of code as control enters
+        // it, so a run that fills the data store fails at the CALL, CALLI or RETURN that enters the stretch that would
+        // overflow, rather than at the push that would. The other engines run a verified program with their checks.
+
+        this.verified = verified;
+    }
+
+    public void setTracer(Tracer tracer) {
+        // Sets the tracer that receives the events of each run, or null for none. A traced run is carried out by the
+        // threaded engine, whichever engine is set, through handlers that report each instruction before executing
+        // it, so that the other engines never test for a tracer.
+
+        this.configuredTracer = tracer;
+    }
+
+    public void setTierThreshold(int tierThreshold) {
+        // Sets the number of calls or back-edges after which the tiered engine runs a routine or loop as compiled
+        // bytecode.
+
+        this.tierThreshold = tierThreshold;
+    }
+
+    public void setInput(InputStream input) {
+        // Sets the stream the program reads its input from. The machine does not close it.
+
+        this.input = input;
+    }
+
+    public void setOutput(OutputStream output) {
+        // Sets the stream the program writes its output to. The machine flushes it whenever run returns, but does not
+        // close it.
+
+        this.output = output;
+    }
+
+    public void setIOBufferSize(int ioBufferSize) {
+        // Sets the size in bytes of the buffers for the program's input and output.
+
+        this.ioBufferSize = ioBufferSize;
+    }
+
+    public void setPrompting(boolean prompting, boolean flushOnNewline) {
+        // Sets whether GETINT prompts for its input, and whether output is written out at the end of each line, as
+        // for an interactive console.
+
+        this.prompting = prompting;
+        this.flushOnNewline = flushOnNewline;
+    }
+
+    // PROGRAM STATUS
+
+    public Status status() {
+        // Returns the state of the current run of the program.
+
+        return Status.values()[status];
+    }
+
+    public long instructionCount() {
+        // Returns the number of instructions executed so far in the current run of the program.
+
+        return executed;
+    }
+
+
+    int content(int r) {
+        // Returns the current content of register number r,
+        // even if r is one of the pseudo-registers L1..L6.
+
+        return content(r, ST, LB, CP);
+    }
+
+    int content(int r, int st, int lb, int cp) {
+        // Returns the content of register number r, given the contents of ST, LB and CP.
+
+        switch (r) {
+            case Machine.CBr:
+                return CB;
+            case Machine.CTr:
+                return CT;
+            case Machine.PBr:
+                return PB;
+            case Machine.PTr:
+                return PT;
+            case Machine.SBr:
+                return SB;
+            case Machine.STr:
+                return st;
+            case Machine.HBr:
+                return HB;
+            case Machine.HTr:
+                return HT;
+            case Machine.LBr:
+                return lb;
+            case Machine.L1r:
+                return displayEntry(1, lb);
+            case Machine.L2r:
+                return displayEntry(2, lb);
+            case Machine.L3r:
+                return displayEntry(3, lb);
+            case Machine.L4r:
+                return displayEntry(4, lb);
+            case Machine.L5r:
+                return displayEntry(5, lb);
+            case Machine.L6r:
+                return displayEntry(6, lb);
+            case Machine.CPr:
+                return cp;
+            default:
+                return 0;
+        }
+    }
+
+    int displayEntry(int level, int lb) {
+        // Returns the base of the frame reached by following level static links from the frame at lb.
+
+        if (displayLevels == 0) {
+            display[0] = lb;
+            displayLevels = 1;
+        }
+        while (displayLevels <= level) {
+            display[displayLevels] = data[display[displayLevels - 1]];
+            displayLevels = displayLevels + 1;
+        }
+        return display[level];
+    }
+
+    // INTERPRETATION
+
+    void dump() {
+        // Writes a summary of the machine state.
+
+        System.out.println("");
+        System.out.println("State of data store and registers:");
+        System.out.println("");
+        // the parts of the data store are written from the highest address down
+        if (HB > SB) {
+            dumpHeap();
+            System.out.println("            |////////|");
+            System.out.println("            |////////|");
+            dumpStack();
+        } else {
+            dumpStack();
+            System.out.println("            |////////|");
+            System.out.println("            |////////|");
+            dumpHeap();
+        }
+        System.out.println("");
+    }
+
+    void dumpHeap() {
+        // Writes the contents of the heap.
+
+        if (HT == HB) {
+            System.out.println("            |--------|          (heap is empty)");
+        } else {
+            System.out.println("       HB-->");
+            System.out.println("            |--------|");
+            for (var addr = HB - 1; addr >= HT; addr--) {
+                System.out.print(addr + ":");
+                if (addr == HT) {
+                    System.out.print(" HT-->");
+                } else {
+                    System.out.print("      ");
+                }
+                System.out.println("|" + data[addr] + "|");
+            }
+            System.out.println("            |--------|");
+        }
+    }
+
+    void dumpStack() {
+        // Writes the contents of the stack, marking its frames.
+
+        if (ST == SB) {
+            System.out.println("            |--------|          (stack is empty)");
+        } else {
+            var dynamicLink = LB;
+            var staticLink = LB;
+            var localRegNum = Register.LB;
+            System.out.println("      ST--> |////////|");
+            System.out.println("            |--------|");
+            for (var addr = ST - 1; addr >= SB; addr--) {
+                System.out.print(addr + ":");
+                if (addr == SB) {
+                    System.out.print(" SB-->");
+                } else if (addr == staticLink) {
+                    switch (localRegNum) {
+                        case LB:
+                            System.out.print(" LB-->");
+                            break;
+                        case L1:
+                            System.out.print(" L1-->");
+                            break;
+                        case L2:
+                            System.out.print(" L2-->");
+                            break;
+                        case L3:
+                            System.out.print(" L3-->");
+                            break;
+                        case L4:
+                            System.out.print(" L4-->");
+                            break;
+                        case L5:
+                            System.out.print(" L5-->");
+                            break;
+                        case L6:
+                            System.out.print(" L6-->");
+                            break;
+                        default:
+                            break;
+                    }
+                    staticLink = data[addr];
+                    localRegNum = Register.values()[localRegNum.ordinal() + 1];
+                } else {
+                    System.out.print("      ");
+                }
+                if (addr == dynamicLink && dynamicLink != SB) {
+                    System.out.print("|SL=" + data[addr] + "|");
+                } else if (addr == dynamicLink + 1 && dynamicLink != SB) {
+                    System.out.print("|DL=" + data[addr] + "|");
+                } else if (addr == dynamicLink + 2 && dynamicLink != SB) {
+                    System.out.print("|RA=" + data[addr] + "|");
+                } else {
+                    System.out.print("|" + data[addr] + "|");
+                }
+                System.out.println("");
+                if (addr == dynamicLink) {
+                    System.out.println("            |--------|");
+                    dynamicLink = data[addr + 1];
+                }
+            }
+        }
+    }
+
+    void checkSpace(int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the stack by
+        // spaceNeeded.
+
+        checkSpace(ST, spaceNeeded);
+    }
+
+    void checkSpace(int st, int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the stack at st
+        // by spaceNeeded, growing the data store first if that is allowed.
+
+        if (stackLimit - st < spaceNeeded) {
+            if (growDataStore) {
+                expandDataStore((long) st + spaceNeeded);
+            } else {
+                status = failedDataStoreFull;
+            }
+        }
+    }
+
+    void reserveSpace(int st, int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the stack at st
+        // by spaceNeeded, and otherwise keeps the heap out of that space.
+
+        checkSpace(st, spaceNeeded);
+        stackReserve = st + spaceNeeded;
+    }
+
+    void checkHeapSpace(int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the heap by
+        // spaceNeeded.
+
+        var heapLimit = growDataStore ? 0 : Math.max(ST, stackReserve);
+        if (HT - heapLimit < spaceNeeded) {
+            status = failedDataStoreFull;
+        }
+    }
+
+    void expandDataStore(long sizeNeeded) {
+        // Doubles the size of the data store until it holds sizeNeeded words,
+        // keeping every word at its address, or signals failure if that would
+        // exceed maxDataStoreSize.
+
+        if (sizeNeeded > maxDataStoreSize) {
+            status = failedDataStoreFull;
+            return;
+        }
+        var size = Math.max((long) data.length, 1);
+        while (size < sizeNeeded) {
+            size = size * 2;
+        }
+        data = Arrays.copyOf(data, (int) Math.min(size, maxDataStoreSize));
+        stackLimit = data.length;
+    }
+
+    int address(int r, int d, int st, int lb, int cp) {
+        // Returns the address d[r] of a decoded instruction, given the contents of ST, LB and CP.
+
+        if (r == absoluteRegister) {
+            return d;
+        } else if (r == Machine.LBr) {
+            return d + lb;
+        } else {
+            return d + content(r, st, lb, cp);
+        }
+    }
+
+    static boolean isTrue(int datum) {
+        // Tests whether the given datum represents true.
+        return (datum == Machine.trueRep);
+    }
+
+    boolean equal(int size, int addr1, int addr2) {
+        // Tests whether two multi-word objects are equal, given their common
+        // size and their base addresses.
+
+        boolean eq;
+        int index;
+
+        eq = true;
+        index = 0;
+        while (eq && (index < size)) {
+            if (data[addr1 + index] == data[addr2 + index]) {
+                index = index + 1;
+            } else {
+                eq = false;
+            }
+        }
+
+        return eq;
+    }
+
+    int overflowChecked(long datum) {
+        // Signals failure if the datum is too large to fit into a single word,
+        // otherwise returns the datum as a single word.
+
+        if ((-Machine.maxintRep <= datum) && (datum <= Machine.maxintRep)) {
+            return (int) datum;
+        } else {
+            status = failedOverflow;
+            return 0;
+        }
+    }
+
+    static int toInt(boolean b) {
+        return b ? Machine.trueRep : Machine.falseRep;
+    }
+
+    void callPrimitive(int primitiveDisplacement) {
+        // Invokes the given primitive routine.
+
+        int addr, size;
+        char ch;
+
+        switch (primitiveDisplacement) {
+            case Machine.idDisplacement:
+                break; // nothing to be done
+            case Machine.notDisplacement:
+                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
+                break;
+            case Machine.andDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
+                break;
+            case Machine.orDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
+                break;
+            case Machine.succDisplacement:
+                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
+                break;
+            case Machine.predDisplacement:
+                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
+                break;
+            case Machine.negDisplacement:
+                data[ST - 1] = -data[ST - 1];
+                break;
+            case Machine.addDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator + data[ST]);
+                break;
+            case Machine.subDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator - data[ST]);
+                break;
+            case Machine.multDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator * data[ST]);
+                break;
+            case Machine.divDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0) {
+                    data[ST - 1] = (int) (accumulator / data[ST]);
+                } else {
+                    status = failedZeroDivide;
+                }
+                break;
+            case Machine.modDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0) {
+                    data[ST - 1] = (int) (accumulator % data[ST]);
+                } else {
+                    status = failedZeroDivide;
+                }
+                break;
+            case Machine.ltDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
+                break;
+            case Machine.leDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
+                break;
+            case Machine.geDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
+                break;
+            case Machine.gtDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
+                break;
+            case Machine.eqDisplacement:
+                size = data[ST - 1]; // size of each comparand
+                ST = ST - 2 * size;
+                data[ST - 1] = toInt(equal(size, ST - 1, ST - 1 + size));
+                break;
+            case Machine.neDisplacement:
+                size = data[ST - 1]; // size of each comparand
+                ST = ST - 2 * size;
+                data[ST - 1] = toInt(!equal(size, ST - 1, ST - 1 + size));
+                break;
+            case Machine.eolDisplacement:
+                data[ST] = toInt(currentChar == '\n');
+                ST = ST + 1;
+                break;
+            case Machine.eofDisplacement:
+                data[ST] = toInt(currentChar == -1);
+                ST = ST + 1;
+                break;
+            case Machine.getDisplacement:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    currentChar = io.read();
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                data[addr] = currentChar;
+                if (tracer != null) {
+                    tracer.ioPerformed(primitiveDisplacement, currentChar);
+                }
+                break;
+            case Machine.putDisplacement:
+                ST = ST - 1;
+                ch = (char) data[ST];
+                try {
+                    io.write(ch);
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                if (tracer != null) {
+                    tracer.ioPerformed(primitiveDisplacement, ch);
+                }
+                break;
+            case Machine.geteolDisplacement:
+                try {
+                    while ((currentChar = io.read()) != '\n' && currentChar != -1)
+                        ;
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                if (tracer != null) {
+                    tracer.ioPerformed(primitiveDisplacement, -1);
+                }
+                break;
+            case Machine.puteolDisplacement:
+                try {
+                    io.writeLine();
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                if (tracer != null) {
+                    tracer.ioPerformed(primitiveDisplacement, -1);
+                }
+                break;
+            case Machine.getintDisplacement:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    if (prompting) {
+                        io.write("enter int: ");
+                        io.writeLine();
+                    }
+                    accumulator = io.readInt();
+                    currentChar = io.lastRead();
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                data[addr] = (int) accumulator;
+                if (tracer != null) {
+                    tracer.ioPerformed(primitiveDisplacement, (int) accumulator);
+                }
+                break;
+            case Machine.putintDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST];
+                try {
+                    io.write(Long.toString(accumulator));
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                if (tracer != null) {
+                    tracer.ioPerformed(primitiveDisplacement, (int) accumulator);
+                }
+                break;
+            case Machine.newDisplacement:
+                size = data[ST - 1];
+                data[ST - 1] = heap.allocate(size);
+                if (!growDataStore) {
+                    stackLimit = HT;
+                }
+                if (tracer != null && status == running) {
+                    tracer.heapAllocated(data[ST - 1], size);
+                }
+                break;
+            case Machine.disposeDisplacement:
+                ST = ST - 1;
+                heap.dispose(data[ST]);
+                if (!growDataStore) {
+                    stackLimit = HT;
+                }
+                if (tracer != null) {
+                    tracer.heapDisposed(data[ST]);
+                }
+                break;
+            default:
+                status = failedInvalidInstruction;
+                break;
+        }
+    }
+
+    // INTERPRETATION
+
+    void interpretProgram() {
+        // Runs the program in the pre-decoded code store from CP, until it stops or stepsLeft is used up. A
+        // superinstruction counts as a step for each instruction of its sequence that it executes, and once fewer steps
+        // are left than are in the longest sequence, the instructions of a sequence are run one at a time, so that the
+        // run stops after exactly stepsLeft instructions.
+        //
+        // The registers ST, LB and CP, and stepsLeft, are kept in the local variables st, lb, cp and steps while the
+        // loop runs, and are written back to the fields only around the calls that need them there: primitive routines
+        // other than the inline ones, promotion of hot code, and the end of the run. A traced run is never carried out
+        // by this loop, so it does not test for a tracer.
+        //
+        // A verified program is run with needs holding its stack needs, and otherwise with needs null. The code address
+        // is then checked only where it is taken from the stack, by CALLI and RETURN, and the stack space is checked
+        // only where control enters a stretch of code, by CALL, CALLI and RETURN, for all that the stretch needs.
+
+        final int[] code = decodedCode;
+        final int[] needs = stackNeeds;
+        final int[] hotness = this.hotness;
+
+        var steps = stepsLeft;
+        var st = ST;
+        var lb = LB;
+        var cp = CP;
+        do {
+            // Fetch and decode instruction ...
+            var i = cp * decodedWidth;
+            var op = code[i];
+            var r = code[i + 1];
+            var n = code[i + 2];
+            var d = code[i + 3];
+            int addr;
+            long acc;
+            if (steps < longestSequence) {
+                op = unfused(op);
+            }
+
+            // Execute instruction ...
+            switch (op) {
+                case LOADLCALLop:
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = d;
+                    if (status != running) {
+                        st = st + 1;
+                        cp = cp + 1;
+                        break;
+                    }
+                    acc = data[st - 1];
+                    switch (n) {
+                        case Machine.addDisplacement:
+                            data[st - 1] = overflowChecked(acc + d);
+                            break;
+                        case Machine.subDisplacement:
+                            data[st - 1] = overflowChecked(acc - d);
+                            break;
+                        case Machine.multDisplacement:
+                            data[st - 1] = overflowChecked(acc * d);
+                            break;
+                        case Machine.ltDisplacement:
+                            data[st - 1] = toInt(acc < d);
+                            break;
+                        case Machine.leDisplacement:
+                            data[st - 1] = toInt(acc <= d);
+                            break;
+                        case Machine.geDisplacement:
+                            data[st - 1] = toInt(acc >= d);
+                            break;
+                        case Machine.gtDisplacement:
+                            data[st - 1] = toInt(acc > d);
+                            break;
+                    }
+                    cp = cp + 2;
+                    steps = steps - 1;
+                    break;
+                case INDEXop:
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = d;
+                    if (status != running) {
+                        st = st + 1;
+                        cp = cp + 1;
+                        break;
+                    }
+                    acc = data[st - 1];
+                    data[st - 1] = overflowChecked(acc * d);
+                    if (status != running) {
+                        cp = cp + 2;
+                        steps = steps - 1;
+                        break;
+                    }
+                    st = st - 1;
+                    acc = data[st - 1];
+                    data[st - 1] = overflowChecked(acc + data[st]);
+                    cp = cp + 3;
+                    steps = steps - 2;
+                    break;
+                case LOADALOADIop:
+                    addr = address(r, d, st, lb, cp);
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = addr;
+                    if (status != running) {
+                        st = st + 1;
+                        cp = cp + 1;
+                        break;
+                    }
+                    n = code[i + decodedWidth + 2];
+                    if (needs == null) {
+                        checkSpace(st, n);
+                    }
+                    for (var index = 0; index < n; index++) {
+                        data[st + index] = data[addr + index];
+                    }
+                    st = st + n;
+                    cp = cp + 2;
+                    steps = steps - 1;
+                    break;
+                case INCREMENTop:
+                    addr = address(r, d, st, lb, cp);
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = data[addr];
+                    st = st + 1;
+                    if (status != running) {
+                        cp = cp + 1;
+                        break;
+                    }
+                    d = code[i + decodedWidth + 3];
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = d;
+                    if (status != running) {
+                        st = st + 1;
+                        cp = cp + 2;
+                        steps = steps - 1;
+                        break;
+                    }
+                    acc = data[st - 1];
+                    data[st - 1] = overflowChecked(acc + d);
+                    if (status != running) {
+                        cp = cp + 3;
+                        steps = steps - 2;
+                        break;
+                    }
+                    r = code[i + 3 * decodedWidth + 1];
+                    d = code[i + 3 * decodedWidth + 3];
+                    addr = address(r, d, st, lb, cp);
+                    st = st - 1;
+                    data[addr] = data[st];
+                    cp = cp + 4;
+                    steps = steps - 3;
+                    break;
+                case Machine.LOADop:
+                    addr = address(r, d, st, lb, cp);
+                    if (needs == null) {
+                        checkSpace(st, n);
+                    }
+                    for (var index = 0; index < n; index++) {
+                        data[st + index] = data[addr + index];
+                    }
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADAop:
+                    addr = address(r, d, st, lb, cp);
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = addr;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADIop:
+                    st = st - 1;
+                    addr = data[st];
+                    if (needs == null) {
+                        checkSpace(st, n);
+                    }
+                    for (var index = 0; index < n; index++) {
+                        data[st + index] = data[addr + index];
+                    }
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADLop:
+                    if (needs == null) {
+                        checkSpace(st, 1);
+                    }
+                    data[st] = d;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREop:
+                    addr = address(r, d, st, lb, cp);
+                    st = st - n;
+                    for (var index = 0; index < n; index++) {
+                        data[addr + index] = data[st + index];
+                    }
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREIop:
+                    st = st - 1;
+                    addr = data[st];
+                    st = st - n;
+                    for (var index = 0; index < n; index++) {
+                        data[addr + index] = data[st + index];
+                    }
+                    cp = cp + 1;
+                    break;
+                case Machine.CALLop:
+                    addr = address(r, d, st, lb, cp);
+                    if (addr >= PB) {
+                        ST = st;
+                        callPrimitive(addr - PB);
+                        st = ST;
+                        cp = cp + 1;
+                    } else {
+                        if (needs == null) {
+                            checkSpace(st, 3);
+                        } else {
+                            reserveSpace(st, 3 + needs[addr]);
+                        }
+                        if (0 <= n && n <= 15) {
+                            data[st] = content(n, st, lb, cp); // static link
+                        } else {
+                            status = failedInvalidInstruction;
+                        }
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        lb = st;
+                        displayLevels = 0;
+                        st = st + 3;
+                        cp = addr;
+                        if (hotness != null) {
+                            ST = st;
+                            LB = lb;
+                            CP = cp;
+                            stepsLeft = steps;
+                            promoteIfHot();
+                            steps = stepsLeft;
+                            st = ST;
+                            lb = LB;
+                            cp = CP;
+                        }
+                    }
+                    break;
+                case Machine.CALLIop:
+                    st = st - 2;
+                    addr = data[st + 1];
+                    if (addr >= PB) {
+                        ST = st;
+                        callPrimitive(addr - PB);
+                        st = ST;
+                        cp = cp + 1;
+                        if (needs != null) {
+                            reserveSpace(st, needs[cp]);
+                        }
+                    } else {
+                        if (needs != null) {
+                            if (addr < CB || addr >= CT) {
+                                status = failedInvalidCodeAddress;
+                            } else {
+                                reserveSpace(st, 3 + needs[addr]);
+                            }
+                            if (status != running) {
+                                break;
+                            }
+                        }
+                        // data[st] = static link already
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        lb = st;
+                        displayLevels = 0;
+                        st = st + 3;
+                        cp = addr;
+                    }
+                    break;
+                case Machine.RETURNop:
+                    addr = lb - d;
+                    cp = data[lb + 2];
+                    lb = data[lb + 1];
+                    displayLevels = 0;
+                    st = st - n;
+                    for (var index = 0; index < n; index++) {
+                        data[addr + index] = data[st + index];
+                    }
+                    st = addr + n;
+                    if (needs != null) {
+                        if (cp < CB || cp >= CT) {
+                            status = failedInvalidCodeAddress;
+                        } else {
+                            reserveSpace(st, needs[cp]);
+                        }
+                    }
+                    break;
+                case Machine.PUSHop:
+                    if (needs == null) {
+                        checkSpace(st, d);
+                    }
+                    st = st + d;
+                    cp = cp + 1;
+                    break;
+                case Machine.POPop:
+                    addr = st - n - d;
+                    st = st - n;
+                    for (var index = 0; index < n; index++) {
+                        data[addr + index] = data[st + index];
+                    }
+                    st = addr + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.JUMPop:
+                    addr = address(r, d, st, lb, cp);
+                    if (hotness != null && addr <= cp) {
+                        ST = st;
+                        LB = lb;
+                        CP = addr;
+                        stepsLeft = steps;
+                        promoteIfHot();
+                        steps = stepsLeft;
+                        st = ST;
+                        lb = LB;
+                        cp = CP;
+                    } else {
+                        cp = addr;
+                    }
+                    break;
+                case Machine.JUMPIop:
+                    st = st - 1;
+                    cp = data[st];
+                    break;
+                case Machine.JUMPIFop:
+                    st = st - 1;
+                    if (data[st] == n) {
+                        addr = address(r, d, st, lb, cp);
+                        if (hotness != null && addr <= cp) {
+                            ST = st;
+                            LB = lb;
+                            CP = addr;
+                            stepsLeft = steps;
+                            promoteIfHot();
+                            steps = stepsLeft;
+                            st = ST;
+                            lb = LB;
+                            cp = CP;
+                        } else {
+                            cp = addr;
+                        }
+                    } else {
+                        cp = cp + 1;
+                    }
+                    break;
+                case PRIMITIVEop + Machine.idDisplacement:
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.notDisplacement:
+                    data[st - 1] = toInt(!isTrue(data[st - 1]));
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.andDisplacement:
+                    st = st - 1;
+                    data[st - 1] = toInt(isTrue(data[st - 1]) & isTrue(data[st]));
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.orDisplacement:
+                    st = st - 1;
+                    data[st - 1] = toInt(isTrue(data[st - 1]) | isTrue(data[st]));
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.succDisplacement:
+                    data[st - 1] = overflowChecked(data[st - 1] + 1);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.predDisplacement:
+                    data[st - 1] = overflowChecked(data[st - 1] - 1);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.negDisplacement:
+                    data[st - 1] = -data[st - 1];
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.addDisplacement:
+                    st = st - 1;
+                    acc = data[st - 1];
+                    data[st - 1] = overflowChecked(acc + data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.subDisplacement:
+                    st = st - 1;
+                    acc = data[st - 1];
+                    data[st - 1] = overflowChecked(acc - data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.multDisplacement:
+                    st = st - 1;
+                    acc = data[st - 1];
+                    data[st - 1] = overflowChecked(acc * data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.divDisplacement:
+                    st = st - 1;
+                    acc = data[st - 1];
+                    if (data[st] != 0) {
+                        data[st - 1] = (int) (acc / data[st]);
+                    } else {
+                        status = failedZeroDivide;
+                    }
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.modDisplacement:
+                    st = st - 1;
+                    acc = data[st - 1];
+                    if (data[st] != 0) {
+                        data[st - 1] = (int) (acc % data[st]);
+                    } else {
+                        status = failedZeroDivide;
+                    }
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.ltDisplacement:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] < data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.leDisplacement:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] <= data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.geDisplacement:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] >= data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.gtDisplacement:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] > data[st]);
+                    cp = cp + 1;
+                    break;
+                case PRIMITIVEop + Machine.eqDisplacement:
+                case PRIMITIVEop + Machine.neDisplacement:
+                case PRIMITIVEop + Machine.eolDisplacement:
+                case PRIMITIVEop + Machine.eofDisplacement:
+                case PRIMITIVEop + Machine.getDisplacement:
+                case PRIMITIVEop + Machine.putDisplacement:
+                case PRIMITIVEop + Machine.geteolDisplacement:
+                case PRIMITIVEop + Machine.puteolDisplacement:
+                case PRIMITIVEop + Machine.getintDisplacement:
+                case PRIMITIVEop + Machine.putintDisplacement:
+                case PRIMITIVEop + Machine.newDisplacement:
+                case PRIMITIVEop + Machine.disposeDisplacement:
+                    ST = st;
+                    callPrimitive(op - PRIMITIVEop);
+                    st = ST;
+                    cp = cp + 1;
+                    break;
+                case Machine.HALTop:
+                    status = halted;
+                    break;
+            }
+            if (needs == null && (cp < CB || cp >= CT)) {
+                status = failedInvalidCodeAddress;
+            }
+            steps = steps - 1;
+        } while (status == running && steps > 0);
+
+        stepsLeft = steps;
+        ST = st;
+        LB = lb;
+        CP = cp;
+    }
+
+    void promoteIfHot() {
+        // Counts an entry to the routine or loop starting at CP. Once it has become hot, runs it as compiled bytecode
+        // until the frame it was entered in returns.
+
+        if (CP < CB || CP >= CT || status != running) {
+            return;
+        }
+        hotness[CP] = hotness[CP] + 1;
+        if (hotness[CP] >= tierThreshold && stepsLeft > 1) {
+            // the CALL or jump that entered the routine or loop is counted once this returns, so the compiled code may
+            // take one step fewer than are left
+            stepsLeft = stepsLeft - 1;
+            image.compiled().interpretFrame(this, LB);
+            stepsLeft = stepsLeft + 1;
+            if (stackNeeds != null && status == running) {
+                // the compiled code checks the space for what it runs, so not for the stretch of code it returns to
+                reserveSpace(ST, stackNeeds[CP]);
+            }
+        }
+    }
+
+    static int unfused(int op) {
+        // Returns the opcode of the first instruction of the sequence that the given opcode executes.
+
+        switch (op) {
+            case LOADLCALLop:
+            case INDEXop:
+                return Machine.LOADLop;
+            case LOADALOADIop:
+                return Machine.LOADAop;
+            case INCREMENTop:
+                return Machine.LOADop;
+            default:
+                return op;
+        }
+    }
+
+    // LOADING AND RUNNING
+
+    public void load(String objectName) throws IOException {
+        // Loads the TAM object program into code store from the named file, ready to run. The file is mapped into
+        // memory and decoded from there, rather than read.
+
+        load(ObjectFormat.map(objectName));
+    }
+
+    public void load(InputStream objectStream) throws IOException {
+        // Loads the TAM object program into code store from the given stream, ready to run.
+
+        load(ByteBuffer.wrap(objectStream.readAllBytes()));
+    }
+
+    public void load(ByteBuffer objectProgram) throws IOException {
+        // Loads the TAM object program between the position and limit of the given buffer into code store, ready to
+        // run. A program already decoded for a machine with the same data store layout is not decoded again, but
+        // shared. The buffer is not changed or kept.
+
+        // the data store is allocated first, since decoding adds the contents of SB and HB to operands
+        allocateDataStore();
+        var loaded = CodeImage.of(objectProgram, SB, HB);
+        if (verified && !loaded.verifier().passed()) {
+            throw new IOException("Object program failed verification: " + loaded.verifier().failure);
+        }
+        image = loaded;
+        stackNeeds = verified ? image.verifier().stackNeeds : null;
+        decodedCode = image.decodedCode;
+        CT = image.CT;
+        PB = image.PB;
+        PT = image.PT;
+        initializeRegisters();
+    }
+
+    public static void clearCodeCache() {
+        // Forgets the decoded programs kept for sharing, so that their memory can be reclaimed once no machine is
+        // running them.
+
+        CodeImage.clearCache();
+    }
+
+    public void reset() {
+        // Empties the data store and the heap, and makes the loaded program ready to run again from the beginning.
+        // The data store keeps the layout it was given at load time, since operands relative to SB and HB were
+        // decoded against it.
+
+        Arrays.fill(data, 0);
+        initializeRegisters();
+    }
+
+    public void saveSnapshot(OutputStream out) throws IOException {
+        // Writes the state of the current run of the loaded program to the given stream, which is not closed, so that
+        // the run can be carried on from there by restoreSnapshot, on this machine or another that has loaded the same
+        // program with the same data store sizes. The program's output so far is written out first.
+
+        if (CT == CB) {
+            throw new IllegalStateException("No program loaded");
+        }
+        io.flush();
+        Snapshot.write(this, out);
+    }
+
+    public void restoreSnapshot(InputStream in) throws IOException {
+        // Replaces the state of the run of the loaded program by that read from the given stream, which is not closed,
+        // ready to carry on the run. The program's input, as set by setInput, must be its input from the start of the
+        // run, and is passed over up to where the run had read to; its output, as set by setOutput, carries on from
+        // where the run had written to. If the snapshot is not of the loaded program with the same data store layout,
+        // or cannot be read, the machine is left ready to run the program from the beginning.
+
+        if (CT == CB) {
+            throw new IllegalStateException("No program loaded");
+        }
+        reset();
+        try {
+            Snapshot.read(this, in);
+        } catch (IOException s) {
+            reset();
+            throw s;
+        }
+        stackReserve = SB;
+        if (stackNeeds != null && status == running && CP < CT) {
+            reserveSpace(ST, stackNeeds[CP]);
+        }
+    }
+
+    public Status run() {
+        // Runs the loaded program until it stops, and returns how it stopped.
+
+        return run(Long.MAX_VALUE);
+    }
+
+    public Status run(long steps) {
+        // Runs the loaded program for a slice of at most the given number of instructions, and returns whether it is
+        // still running or how it stopped. A program still running can be continued by calling run again, on this
+        // thread or another, so that a scheduler can share a few threads among many machines. Every engine
+        // stops after exactly the given number of instructions, counting each instruction of a superinstruction, and a
+        // run fails once its instruction limit is used up.
+
+        if (CT == CB) {
+            throw new IllegalStateException("No program loaded");
+        }
+        if (status == running && steps > 0) {
+            var slice = Math.min(steps, instructionLimit - executed);
+            stepsLeft = slice;
+            if (slice > 0) {
+                if (tracer != null) {
+                    ThreadedInterpreter.interpretProgram(this, tracedHandlers);
+                } else {
+                    switch (engine) {
+                        case COMPILED:
+                            image.compiled().interpretProgram(this);
+                            break;
+                        case THREADED:
+                            ThreadedInterpreter.interpretProgram(this);
+                            break;
+                        default:
+                            interpretProgram();
+                            break;
+                    }
+                }
+            }
+            executed = executed + (slice - stepsLeft);
+            if (status == running && executed >= instructionLimit) {
+                status = failedInstructionLimit;
+            }
+        }
+        try {
+            io.flush();
+        } catch (IOException s) {
+            status = failedIOError;
+        }
+        return status();
+    }
+
+    void allocateDataStore() {
+        // Allocates a data store of stackSize + heapSize words.
+        //
+        // Normally the heap sits at the top of the data store and grows down towards the stack, which grows up from
+        // address 0, so that either may use the space the other leaves free. A data store that grows on demand puts
+        // the heap below the stack instead, so that growing the stack only extends the end of the store and every
+        // address already held by the program, on the stack or in the heap, stays valid.
+
+        data = new int[stackSize + heapSize];
+        if (growDataStore) {
+            SB = heapSize;
+            HB = heapSize;
+        } else {
+            SB = 0;
+            HB = data.length;
+        }
+    }
+
+    void initializeRegisters() {
+        // Initializes the registers and the input and output channels for a run of the program in code store.
+
+        ST = SB;
+        HT = HB;
+        LB = SB;
+        CP = CB;
+        stackLimit = growDataStore ? data.length : HT;
+        stackReserve = SB;
+        status = running;
+        displayLevels = 0;
+        heap.reset();
+        profiler = profiling && CT > CB ? new Profiler(decodedCode, CT) : null;
+        if (profiler == null) {
+            tracer = configuredTracer;
+        } else {
+            tracer = configuredTracer == null ? profiler : profiler.andThen(configuredTracer);
+        }
+        tracedHandlers = tracer == null || CT == CB ? null
+                                                   : ThreadedInterpreter.traced(decodedCode, image.handlers(), tracer);
+        hotness = engine == Engine.TIERED && tracer == null ? new int[CT] : null;
+        executed = 0;
+        io = new MachineIO(input, output, ioBufferSize, flushOnNewline);
+        currentChar = 0;
+        accumulator = 0;
+        if (stackNeeds != null && CT > CB) {
+            reserveSpace(ST, stackNeeds[CB]);
+        }
+    }
+
+}
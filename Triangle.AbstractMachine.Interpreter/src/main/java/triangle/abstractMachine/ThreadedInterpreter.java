@@ -0,0 +1,651 @@
+/*
+ * @(#)ThreadedInterpreter.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import static triangle.abstractMachine.TamVm.CB;
+import static triangle.abstractMachine.TamVm.absoluteRegister;
+import static triangle.abstractMachine.TamVm.decodedWidth;
+import static triangle.abstractMachine.TamVm.failedInvalidCodeAddress;
+import static triangle.abstractMachine.TamVm.failedInvalidInstruction;
+import static triangle.abstractMachine.TamVm.halted;
+import static triangle.abstractMachine.TamVm.running;
+
+/**
+ An alternative execution engine for the program in code store. Each decoded instruction is translated once into a
+ {@link Handler} whose operands are bound as final fields, so that executing an instruction is a single virtual call
+ rather than a re-decode and a switch on its opcode.
+ <p>
+ The handlers act on the machine state of the {@link TamVm} they are given, and behave exactly as the corresponding
+ cases of {@link TamVm#interpretProgram()}. They hold no state of their own.
+ <p>
+ A traced run is carried out by handlers that wrap these, built for the run's {@link Tracer} when the run starts, so
+ that an untraced run never tests for a tracer.
+ */
+final class ThreadedInterpreter {
+
+    private ThreadedInterpreter() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static void interpretProgram(TamVm vm) {
+        // Runs the program in the code store of the given machine from CP, until it stops or its stepsLeft is used up.
+
+        interpretProgram(vm, vm.image.handlers());
+    }
+
+    static void interpretProgram(TamVm vm, Handler[] handlers) {
+        // Runs the program in the code store of the given machine from CP by the given handlers, one for each
+        // instruction, until it stops or its stepsLeft is used up.
+
+        var steps = vm.stepsLeft;
+        do {
+            handlers[vm.CP].execute(vm);
+            if (vm.CP < CB || vm.CP >= vm.CT) {
+                vm.status = failedInvalidCodeAddress;
+            }
+            steps = steps - 1;
+        } while (vm.status == running && steps > 0);
+        vm.stepsLeft = steps;
+    }
+
+    static Handler[] translate(int[] code, int count) {
+        // Translates the first count instructions of the given decoded code into handlers.
+
+        var handlers = new Handler[count];
+        for (var addr = 0; addr < count; addr++) {
+            var i = addr * decodedWidth;
+            handlers[addr] = translate(code[i], code[i + 1], code[i + 2], code[i + 3]);
+        }
+        return handlers;
+    }
+
+    static Handler translate(int op, int r, int n, int d) {
+        if (op >= TamVm.PRIMITIVEop) {
+            return new CallPrimitive(op - TamVm.PRIMITIVEop);
+        }
+
+        // superinstructions are translated as the first instruction of their sequence, whose handler is followed by
+        // those of the rest of the sequence
+        switch (TamVm.unfused(op)) {
+            case Machine.LOADop:
+                if (r == absoluteRegister) {
+                    return new LoadAbsolute(n, d);
+                } else if (r == Machine.LBr) {
+                    return new LoadLocal(n, d);
+                } else {
+                    return new Load(n, r, d);
+                }
+            case Machine.LOADAop:
+                if (r == absoluteRegister) {
+                    return new LoadLiteral(d);
+                } else {
+                    return new LoadAddress(r, d);
+                }
+            case Machine.LOADIop:
+                return new LoadIndirect(n);
+            case Machine.LOADLop:
+                return new LoadLiteral(d);
+            case Machine.STOREop:
+                if (r == absoluteRegister) {
+                    return new StoreAbsolute(n, d);
+                } else if (r == Machine.LBr) {
+                    return new StoreLocal(n, d);
+                } else {
+                    return new Store(n, r, d);
+                }
+            case Machine.STOREIop:
+                return new StoreIndirect(n);
+            case Machine.CALLop:
+                return new Call(n, r, d);
+            case Machine.CALLIop:
+                return new CallIndirect();
+            case Machine.RETURNop:
+                return new Return(n, d);
+            case Machine.PUSHop:
+                return new Push(d);
+            case Machine.POPop:
+                return new Pop(n, d);
+            case Machine.JUMPop:
+                if (r == absoluteRegister) {
+                    return new Jump(d);
+                } else {
+                    return new JumpRelative(r, d);
+                }
+            case Machine.JUMPIop:
+                return new JumpIndirect();
+            case Machine.JUMPIFop:
+                return new JumpIf(n, r, d);
+            case Machine.HALTop:
+                return new Halt();
+            default:
+                // as in the switch interpreter, an instruction with no effect leaves CP unchanged
+                return new Nop();
+        }
+    }
+
+    static Handler[] traced(int[] code, Handler[] handlers, Tracer tracer) {
+        // Returns handlers that execute the given handlers of the given decoded code, reporting each instruction, and
+        // each call and return of a routine, to the given tracer.
+
+        var traced = new Handler[handlers.length];
+        for (var addr = 0; addr < handlers.length; addr++) {
+            var i = addr * decodedWidth;
+            switch (TamVm.unfused(code[i])) {
+                case Machine.CALLop:
+                    traced[addr] = new TracedCall(addr, handlers[addr], tracer, code[i + 1], code[i + 3]);
+                    break;
+                case Machine.CALLIop:
+                    traced[addr] = new TracedCallIndirect(addr, handlers[addr], tracer);
+                    break;
+                case Machine.RETURNop:
+                    traced[addr] = new TracedReturn(addr, handlers[addr], tracer);
+                    break;
+                default:
+                    traced[addr] = new Traced(addr, handlers[addr], tracer);
+                    break;
+            }
+        }
+        return traced;
+    }
+
+    abstract static class Handler {
+
+        // Executes the instruction on the given machine, leaving CP at the next instruction to execute.
+        abstract void execute(TamVm vm);
+
+    }
+
+    static final class LoadAbsolute extends Handler {
+
+        private final int n, addr;
+
+        LoadAbsolute(int n, int addr) {
+            this.n = n;
+            this.addr = addr;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.checkSpace(n);
+            for (var index = 0; index < n; index++) {
+                vm.data[vm.ST + index] = vm.data[addr + index];
+            }
+            vm.ST = vm.ST + n;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class LoadLocal extends Handler {
+
+        private final int n, d;
+
+        LoadLocal(int n, int d) {
+            this.n = n;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.checkSpace(n);
+            for (var index = 0; index < n; index++) {
+                vm.data[vm.ST + index] = vm.data[vm.LB + d + index];
+            }
+            vm.ST = vm.ST + n;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class Load extends Handler {
+
+        private final int n, r, d;
+
+        Load(int n, int r, int d) {
+            this.n = n;
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            var addr = d + vm.content(r);
+            vm.checkSpace(n);
+            for (var index = 0; index < n; index++) {
+                vm.data[vm.ST + index] = vm.data[addr + index];
+            }
+            vm.ST = vm.ST + n;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class LoadAddress extends Handler {
+
+        private final int r, d;
+
+        LoadAddress(int r, int d) {
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            var addr = d + vm.content(r);
+            vm.checkSpace(1);
+            vm.data[vm.ST] = addr;
+            vm.ST = vm.ST + 1;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class LoadIndirect extends Handler {
+
+        private final int n;
+
+        LoadIndirect(int n) {
+            this.n = n;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - 1;
+            var addr = vm.data[vm.ST];
+            vm.checkSpace(n);
+            for (var index = 0; index < n; index++) {
+                vm.data[vm.ST + index] = vm.data[addr + index];
+            }
+            vm.ST = vm.ST + n;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class LoadLiteral extends Handler {
+
+        private final int value;
+
+        LoadLiteral(int value) {
+            this.value = value;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.checkSpace(1);
+            vm.data[vm.ST] = value;
+            vm.ST = vm.ST + 1;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class StoreAbsolute extends Handler {
+
+        private final int n, addr;
+
+        StoreAbsolute(int n, int addr) {
+            this.n = n;
+            this.addr = addr;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - n;
+            for (var index = 0; index < n; index++) {
+                vm.data[addr + index] = vm.data[vm.ST + index];
+            }
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class StoreLocal extends Handler {
+
+        private final int n, d;
+
+        StoreLocal(int n, int d) {
+            this.n = n;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - n;
+            for (var index = 0; index < n; index++) {
+                vm.data[vm.LB + d + index] = vm.data[vm.ST + index];
+            }
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class Store extends Handler {
+
+        private final int n, r, d;
+
+        Store(int n, int r, int d) {
+            this.n = n;
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            var addr = d + vm.content(r);
+            vm.ST = vm.ST - n;
+            for (var index = 0; index < n; index++) {
+                vm.data[addr + index] = vm.data[vm.ST + index];
+            }
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class StoreIndirect extends Handler {
+
+        private final int n;
+
+        StoreIndirect(int n) {
+            this.n = n;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - 1;
+            var addr = vm.data[vm.ST];
+            vm.ST = vm.ST - n;
+            for (var index = 0; index < n; index++) {
+                vm.data[addr + index] = vm.data[vm.ST + index];
+            }
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class CallPrimitive extends Handler {
+
+        private final int primitiveDisplacement;
+
+        CallPrimitive(int primitiveDisplacement) {
+            this.primitiveDisplacement = primitiveDisplacement;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.callPrimitive(primitiveDisplacement);
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class Call extends Handler {
+
+        private final int n, r, d;
+
+        Call(int n, int r, int d) {
+            this.n = n;
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            var addr = r == absoluteRegister ? d : d + vm.content(r);
+            if (addr >= vm.PB) {
+                vm.callPrimitive(addr - vm.PB);
+                vm.CP = vm.CP + 1;
+            } else {
+                vm.checkSpace(3);
+                if (0 <= n && n <= 15) {
+                    vm.data[vm.ST] = vm.content(n); // static link
+                } else {
+                    vm.status = failedInvalidInstruction;
+                }
+                vm.data[vm.ST + 1] = vm.LB; // dynamic link
+                vm.data[vm.ST + 2] = vm.CP + 1; // return address
+                vm.LB = vm.ST;
+                vm.displayLevels = 0;
+                vm.ST = vm.ST + 3;
+                vm.CP = addr;
+            }
+        }
+
+    }
+
+    static final class CallIndirect extends Handler {
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - 2;
+            var addr = vm.data[vm.ST + 1];
+            if (addr >= vm.PB) {
+                vm.callPrimitive(addr - vm.PB);
+                vm.CP = vm.CP + 1;
+            } else {
+                // vm.data[vm.ST] = static link already
+                vm.data[vm.ST + 1] = vm.LB; // dynamic link
+                vm.data[vm.ST + 2] = vm.CP + 1; // return address
+                vm.LB = vm.ST;
+                vm.displayLevels = 0;
+                vm.ST = vm.ST + 3;
+                vm.CP = addr;
+            }
+        }
+
+    }
+
+    static final class Return extends Handler {
+
+        private final int n, d;
+
+        Return(int n, int d) {
+            this.n = n;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            var addr = vm.LB - d;
+            vm.CP = vm.data[vm.LB + 2];
+            vm.LB = vm.data[vm.LB + 1];
+            vm.displayLevels = 0;
+            vm.ST = vm.ST - n;
+            for (var index = 0; index < n; index++) {
+                vm.data[addr + index] = vm.data[vm.ST + index];
+            }
+            vm.ST = addr + n;
+        }
+
+    }
+
+    static final class Push extends Handler {
+
+        private final int d;
+
+        Push(int d) {
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.checkSpace(d);
+            vm.ST = vm.ST + d;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class Pop extends Handler {
+
+        private final int n, d;
+
+        Pop(int n, int d) {
+            this.n = n;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            var addr = vm.ST - n - d;
+            vm.ST = vm.ST - n;
+            for (var index = 0; index < n; index++) {
+                vm.data[addr + index] = vm.data[vm.ST + index];
+            }
+            vm.ST = addr + n;
+            vm.CP = vm.CP + 1;
+        }
+
+    }
+
+    static final class Jump extends Handler {
+
+        private final int addr;
+
+        Jump(int addr) {
+            this.addr = addr;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.CP = addr;
+        }
+
+    }
+
+    static final class JumpRelative extends Handler {
+
+        private final int r, d;
+
+        JumpRelative(int r, int d) {
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.CP = d + vm.content(r);
+        }
+
+    }
+
+    static final class JumpIndirect extends Handler {
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - 1;
+            vm.CP = vm.data[vm.ST];
+        }
+
+    }
+
+    static final class JumpIf extends Handler {
+
+        private final int n, r, d;
+
+        JumpIf(int n, int r, int d) {
+            this.n = n;
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            vm.ST = vm.ST - 1;
+            if (vm.data[vm.ST] == n) {
+                vm.CP = r == absoluteRegister ? d : d + vm.content(r);
+            } else {
+                vm.CP = vm.CP + 1;
+            }
+        }
+
+    }
+
+    static final class Halt extends Handler {
+
+        @Override void execute(TamVm vm) {
+            vm.status = halted;
+        }
+
+    }
+
+    static final class Nop extends Handler {
+
+        @Override void execute(TamVm vm) { }
+
+    }
+
+    static class Traced extends Handler {
+
+        final int     addr;
+        final Handler handler;
+        final Tracer  tracer;
+
+        Traced(int addr, Handler handler, Tracer tracer) {
+            this.addr = addr;
+            this.handler = handler;
+            this.tracer = tracer;
+        }
+
+        @Override void execute(TamVm vm) {
+            tracer.instructionExecuted(addr);
+            handler.execute(vm);
+        }
+
+    }
+
+    static final class TracedCall extends Traced {
+
+        private final int r, d;
+
+        TracedCall(int addr, Handler handler, Tracer tracer, int r, int d) {
+            super(addr, handler, tracer);
+            this.r = r;
+            this.d = d;
+        }
+
+        @Override void execute(TamVm vm) {
+            tracer.instructionExecuted(addr);
+            var routine = r == absoluteRegister ? d : d + vm.content(r);
+            if (routine >= vm.PB) {
+                tracer.primitiveCalled(addr, routine - vm.PB);
+                handler.execute(vm);
+            } else {
+                handler.execute(vm);
+                tracer.routineCalled(addr, vm.CP);
+            }
+        }
+
+    }
+
+    static final class TracedCallIndirect extends Traced {
+
+        TracedCallIndirect(int addr, Handler handler, Tracer tracer) {
+            super(addr, handler, tracer);
+        }
+
+        @Override void execute(TamVm vm) {
+            tracer.instructionExecuted(addr);
+            var routine = vm.data[vm.ST - 1];
+            if (routine >= vm.PB) {
+                tracer.primitiveCalled(addr, routine - vm.PB);
+                handler.execute(vm);
+            } else {
+                handler.execute(vm);
+                tracer.routineCalled(addr, vm.CP);
+            }
+        }
+
+    }
+
+    static final class TracedReturn extends Traced {
+
+        TracedReturn(int addr, Handler handler, Tracer tracer) {
+            super(addr, handler, tracer);
+        }
+
+        @Override void execute(TamVm vm) {
+            tracer.instructionExecuted(addr);
+            handler.execute(vm);
+            tracer.routineReturned(addr, vm.CP);
+        }
+
+    }
+
+}
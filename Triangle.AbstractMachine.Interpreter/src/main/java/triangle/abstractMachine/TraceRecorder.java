@@ -0,0 +1,203 @@
+/*
+ * @(#)TraceRecorder.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import com.sampullara.cli.Args;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ A {@link Tracer} that keeps the most recent events of a run in a ring buffer of fixed size, and writes them to a
+ binary trace file, so that the run leading up to a failure can be examined afterwards. Recording an event costs a few
+ array stores and never allocates.
+ <p>
+ A trace file holds, in big-endian order as written by {@link DataOutputStream}: the int magic number 0x54414D54
+ ("TAMT"), the short version 1, the long number of events recorded in the run, and the int number of records that
+ follow, which is that of the events still in the buffer. Each record, oldest first, is a byte giving the kind of
+ event, followed by three ints: the code address or data address of the event, and two operands, whose meaning
+ depends on the kind and which are 0 where it has none.
+ <p>
+ Run as a program, it writes the records of the trace files named on the command line as text.
+ */
+public final class TraceRecorder implements Tracer {
+
+    static final int    magic   = 0x54414D54;
+    static final short  version = 1;
+
+    // the kinds of event, with the meaning of the address and operands of each
+    static final byte   INSTRUCTION = 0,  // code address
+                        CALL        = 1,  // code address, routine
+                        RETURN      = 2,  // code address, return address
+                        PRIMITIVE   = 3,  // code address, primitive displacement
+                        ALLOCATE    = 4,  // data address, size
+                        DISPOSE     = 5,  // data address
+                        IO          = 6;  // 0, primitive displacement, value
+    static final String[] kindNames = { "INSTRUCTION", "CALL", "RETURN", "PRIMITIVE", "ALLOCATE", "DISPOSE", "IO" };
+
+    // Each record takes recordWidth consecutive words of records, holding its kind, address and two operands.
+    private static final int recordWidth = 4;
+
+    private final int[] records;
+    private final int   capacity;
+    // the number of events recorded, the last capacity of which are in records, the oldest at recorded % capacity
+    private long        recorded;
+
+    public TraceRecorder(int capacity) {
+        // Creates a recorder that keeps the given number of most recent events.
+
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE / recordWidth) {
+            throw new IllegalArgumentException("Invalid trace buffer size: " + capacity);
+        }
+        this.capacity = capacity;
+        this.records = new int[capacity * recordWidth];
+    }
+
+    private void record(int kind, int addr, int a, int b) {
+        var i = (int) (recorded % capacity) * recordWidth;
+        records[i] = kind;
+        records[i + 1] = addr;
+        records[i + 2] = a;
+        records[i + 3] = b;
+        recorded = recorded + 1;
+    }
+
+    @Override
+    public void instructionExecuted(int addr) {
+        record(INSTRUCTION, addr, 0, 0);
+    }
+
+    @Override
+    public void routineCalled(int addr, int routine) {
+        record(CALL, addr, routine, 0);
+    }
+
+    @Override
+    public void routineReturned(int addr, int returnAddress) {
+        record(RETURN, addr, returnAddress, 0);
+    }
+
+    @Override
+    public void primitiveCalled(int addr, int primitiveDisplacement) {
+        record(PRIMITIVE, addr, primitiveDisplacement, 0);
+    }
+
+    @Override
+    public void heapAllocated(int addr, int size) {
+        record(ALLOCATE, addr, size, 0);
+    }
+
+    @Override
+    public void heapDisposed(int addr) {
+        record(DISPOSE, addr, 0, 0);
+    }
+
+    @Override
+    public void ioPerformed(int primitiveDisplacement, int value) {
+        record(IO, 0, primitiveDisplacement, value);
+    }
+
+    public void write(String fileName) throws IOException {
+        // Writes the events in the buffer to the named trace file.
+
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            var count = (int) Math.min(recorded, capacity);
+            out.writeInt(magic);
+            out.writeShort(version);
+            out.writeLong(recorded);
+            out.writeInt(count);
+            for (var event = recorded - count; event < recorded; event++) {
+                var i = (int) (event % capacity) * recordWidth;
+                out.writeByte(records[i]);
+                out.writeInt(records[i + 1]);
+                out.writeInt(records[i + 2]);
+                out.writeInt(records[i + 3]);
+            }
+        }
+    }
+
+    // PRINTING
+
+    public static void main(String[] args) {
+        var fileNames = Args.parseOrExit(TraceRecorder.class, args);
+        for (var fileName : fileNames) {
+            try {
+                print(fileName);
+            } catch (IOException s) {
+                System.err.println("Error reading trace file " + fileName + ": " + s);
+            }
+        }
+    }
+
+    static void print(String fileName) throws IOException {
+        // Writes the records of the named trace file as text, one per line, numbered by event.
+
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+            if (in.readInt() != magic || in.readShort() != version) {
+                throw new IOException("not a trace file of version " + version);
+            }
+            var recorded = in.readLong();
+            var count = in.readInt();
+            System.out.println(fileName + ": the last " + count + " of " + recorded + " events");
+            for (var event = recorded - count; event < recorded; event++) {
+                var kind = in.readByte();
+                var addr = in.readInt();
+                var a = in.readInt();
+                var b = in.readInt();
+                System.out.println(String.format("%12d %-11s %s", event,
+                                                 kind >= 0 && kind < kindNames.length ? kindNames[kind] : kind,
+                                                 describe(kind, addr, a, b)));
+            }
+        } catch (EOFException s) {
+            throw new IOException("trace file is truncated", s);
+        }
+    }
+
+    private static String describe(byte kind, int addr, int a, int b) {
+        switch (kind) {
+            case INSTRUCTION:
+                return Integer.toString(addr);
+            case CALL:
+            case RETURN:
+                return addr + " -> " + a;
+            case PRIMITIVE:
+                return addr + ": " + primitiveName(a);
+            case ALLOCATE:
+                return addr + " (" + a + " words)";
+            case DISPOSE:
+                return Integer.toString(addr);
+            case IO:
+                return primitiveName(a) + (b == -1 ? "" : " " + b);
+            default:
+                return addr + " " + a + " " + b;
+        }
+    }
+
+    private static String primitiveName(int primitiveDisplacement) {
+        return primitiveDisplacement >= 0 && primitiveDisplacement < Primitive.values().length
+               ? Primitive.values()[primitiveDisplacement].toString() : Integer.toString(primitiveDisplacement);
+    }
+
+}
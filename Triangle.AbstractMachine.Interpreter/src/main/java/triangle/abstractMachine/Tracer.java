@@ -0,0 +1,104 @@
+/*
+ * @(#)Tracer.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+/**
+ Receives the events of a run of a program on a {@link TamVm}, as set by {@link TamVm#setTracer}.
+ <p>
+ A traced run is carried out by the threaded engine, whichever engine is set, through handlers built for the tracer
+ when the run starts, which report each instruction and then execute it. The engines that run a program with no tracer
+ never test for one. Every event has an empty default, so a tracer implements only the events it wants.
+ */
+public interface Tracer {
+
+    // Called before the instruction at the given code address is executed. Superinstructions are not run when
+    // tracing, so each instruction of their sequences is reported by itself.
+    default void instructionExecuted(int addr) { }
+
+    // Called after the CALL or CALLI at the given code address has entered the routine starting at routine.
+    default void routineCalled(int addr, int routine) { }
+
+    // Called after the RETURN at the given code address has returned to returnAddress.
+    default void routineReturned(int addr, int returnAddress) { }
+
+    // Called before a primitive routine is called by a CALL or CALLI whose address is known only at run time. Calls of
+    // primitive routines by address are decoded at load time, and are seen by instructionExecuted instead.
+    default void primitiveCalled(int addr, int primitiveDisplacement) { }
+
+    // Called after NEW has allocated an object of the given size at the given data address.
+    default void heapAllocated(int addr, int size) { }
+
+    // Called after DISPOSE has given back the object at the given data address.
+    default void heapDisposed(int addr) { }
+
+    // Called after an input or output primitive routine, given by its displacement, has read or written the given
+    // character or integer, or -1 for GETEOL and PUTEOL.
+    default void ioPerformed(int primitiveDisplacement, int value) { }
+
+    // Returns a tracer that passes each event to this tracer and then to the given one.
+    default Tracer andThen(Tracer next) {
+        var first = this;
+        return new Tracer() {
+
+            @Override
+            public void instructionExecuted(int addr) {
+                first.instructionExecuted(addr);
+                next.instructionExecuted(addr);
+            }
+
+            @Override
+            public void routineCalled(int addr, int routine) {
+                first.routineCalled(addr, routine);
+                next.routineCalled(addr, routine);
+            }
+
+            @Override
+            public void routineReturned(int addr, int returnAddress) {
+                first.routineReturned(addr, returnAddress);
+                next.routineReturned(addr, returnAddress);
+            }
+
+            @Override
+            public void primitiveCalled(int addr, int primitiveDisplacement) {
+                first.primitiveCalled(addr, primitiveDisplacement);
+                next.primitiveCalled(addr, primitiveDisplacement);
+            }
+
+            @Override
+            public void heapAllocated(int addr, int size) {
+                first.heapAllocated(addr, size);
+                next.heapAllocated(addr, size);
+            }
+
+            @Override
+            public void heapDisposed(int addr) {
+                first.heapDisposed(addr);
+                next.heapDisposed(addr);
+            }
+
+            @Override
+            public void ioPerformed(int primitiveDisplacement, int value) {
+                first.ioPerformed(primitiveDisplacement, value);
+                next.ioPerformed(primitiveDisplacement, value);
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * @(#)Verifier.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import static triangle.abstractMachine.TamVm.CB;
+import static triangle.abstractMachine.TamVm.PRIMITIVEop;
+import static triangle.abstractMachine.TamVm.absoluteRegister;
+import static triangle.abstractMachine.TamVm.decodedWidth;
+
+/**
+ Checks the program in a {@link CodeImage} once, when it is loaded, for what {@link TamVm} otherwise checks at every
+ instruction it executes, so that a verified program can be run without those checks.
+ <p>
+ A program passes if every instruction is one the machine can execute, every JUMP, JUMPIF and CALL goes to an address
+ in the code store or to a primitive routine, no instruction but JUMP, RETURN and HALT is the last in the code store,
+ and there is no JUMPI, whose target is known only at run time. Control can then leave the code store only through
+ CALLI and RETURN, whose targets are taken from the stack.
+ <p>
+ It also works out, for each code address, the most words the stack can grow by from there before control next reaches
+ a CALL, CALLI, RETURN or HALT, taking the most along every path through jumps. A routine's need is that of its first
+ instruction, so a verified run checks the space for a whole stretch of code at the CALL, CALLI or RETURN that enters
+ it, rather than at every instruction that pushes. A program fails if the stack can grow without bound in a loop that
+ makes no call, or if EQ or NE is not given the size of its operands by the LOADL just before it.
+ */
+final class Verifier {
+
+    // the most words any stretch of code may need, so that the needs cannot overflow when added to an address
+    private static final long maxStackNeed = Integer.MAX_VALUE / 2;
+
+    private final int[]     code;
+    private final int       CT;
+    // whether each code address is the target of a JUMP, JUMPIF or CALL
+    private final boolean[] targets;
+
+    // why the program failed, or null if it passed
+    final String failure;
+    // for each code address, the most words the stack can grow by from there before the next CALL, CALLI, RETURN or
+    // HALT; valid only if the program passed
+    final int[]  stackNeeds;
+
+    Verifier(CodeImage image) {
+        this.code = image.decodedCode;
+        this.CT = image.CT;
+        this.targets = findTargets();
+        this.stackNeeds = new int[CT];
+        var failure = checkInstructions();
+        if (failure == null) {
+            failure = computeStackNeeds();
+        }
+        this.failure = failure;
+    }
+
+    boolean passed() {
+        return failure == null;
+    }
+
+    // INSTRUCTIONS
+
+    private String checkInstructions() {
+        // Returns why an instruction of the program cannot be run without per-instruction checks, or null if every one
+        // can.
+
+        for (var addr = CB; addr < CT; addr++) {
+            var i = addr * decodedWidth;
+            var op = code[i];
+            var r = code[i + 1];
+            var n = code[i + 2];
+            var d = code[i + 3];
+            var problem = op >= PRIMITIVEop ? checkPrimitiveCall(addr, op - PRIMITIVEop)
+                                            : checkInstruction(op, r, n, d);
+            if (problem != null) {
+                return "the instruction at address " + addr + " " + problem;
+            }
+            if (addr + 1 == CT && continues(op)) {
+                return "the instruction at address " + addr + " continues past the end of the code store";
+            }
+        }
+        return null;
+    }
+
+    private String checkInstruction(int op, int r, int n, int d) {
+        // Returns what is wrong with the decoded instruction with the given fields, or null if nothing is.
+
+        switch (TamVm.unfused(op)) {
+            case Machine.LOADop:
+            case Machine.LOADIop:
+            case Machine.STOREop:
+            case Machine.STOREIop:
+                return n < 0 ? "has a negative size" : null;
+            case Machine.PUSHop:
+            case Machine.POPop:
+            case Machine.RETURNop:
+                return n < 0 || d < 0 ? "has a negative size" : null;
+            case Machine.CALLop:
+                if (r != absoluteRegister || d < CB || d >= CT) {
+                    return "does not call a routine or primitive routine";
+                }
+                return n < 0 || n >= Register.values().length ? "has an invalid static link register" : null;
+            case Machine.JUMPop:
+            case Machine.JUMPIFop:
+                return r != absoluteRegister || d < CB || d >= CT ? "does not jump to an address in the code store"
+                                                                 : null;
+            case Machine.JUMPIop:
+                return "jumps to an address known only at run time";
+            default:
+                // LOADA, LOADL, CALLI, HALT and NOP, which cannot go wrong in a way that a check could catch
+                return null;
+        }
+    }
+
+    private String checkPrimitiveCall(int addr, int primitive) {
+        // Returns what is wrong with the call of the given primitive routine at the given code address, or null if
+        // nothing is.
+
+        if ((primitive == Machine.eqDisplacement || primitive == Machine.neDisplacement) && comparandSize(addr) < 0) {
+            return "compares operands of unknown size";
+        }
+        return null;
+    }
+
+    private static boolean continues(int op) {
+        // Tests whether the decoded instruction with the given opcode may continue with, or return to, the next
+        // instruction.
+
+        if (op >= PRIMITIVEop) {
+            return true;
+        }
+        switch (TamVm.unfused(op)) {
+            case Machine.JUMPop:
+            case Machine.RETURNop:
+            case Machine.HALTop:
+            case Machine.NOPop:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private int comparandSize(int addr) {
+        // Returns the size of the operands of the EQ or NE at the given code address, as pushed by the LOADL just
+        // before it, or -1 if that is not known because there is no such LOADL or a jump or call may reach the EQ or
+        // NE directly.
+
+        if (addr == CB || TamVm.unfused(code[(addr - 1) * decodedWidth]) != Machine.LOADLop || targets[addr]) {
+            return -1;
+        }
+        var size = code[(addr - 1) * decodedWidth + 3];
+        return size < 0 || size > maxStackNeed ? -1 : size;
+    }
+
+    private boolean[] findTargets() {
+        // Returns whether each code address is the target of a JUMP, JUMPIF or CALL.
+
+        var targets = new boolean[CT];
+        for (var addr = CB; addr < CT; addr++) {
+            var i = addr * decodedWidth;
+            switch (code[i]) {
+                case Machine.JUMPop:
+                case Machine.JUMPIFop:
+                case Machine.CALLop:
+                    if (code[i + 1] == absoluteRegister && code[i + 3] >= CB && code[i + 3] < CT) {
+                        targets[code[i + 3]] = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return targets;
+    }
+
+    // STACK NEEDS
+
+    private String computeStackNeeds() {
+        // Fills in stackNeeds, or returns why the stack needs of the program are not bounded.
+        //
+        // The need at each address is the larger of the peak of its instruction and its effect plus the greatest need
+        // at its successors. The needs are found by raising them from 0 in passes over the program, last address
+        // first, until they no longer change. A pass carries each need back across every forward jump, and one more
+        // backward jump, so if the stack grows in no loop the needs settle after a pass for each backward jump and one
+        // more, and needs still changing after that mean a loop in which it grows.
+
+        var backwardJumps = 0;
+        for (var addr = CB; addr < CT; addr++) {
+            var i = addr * decodedWidth;
+            if ((code[i] == Machine.JUMPop || code[i] == Machine.JUMPIFop) && code[i + 3] <= addr) {
+                backwardJumps = backwardJumps + 1;
+            }
+        }
+
+        var needs = new long[CT];
+        var passes = 0;
+        var changed = true;
+        while (changed) {
+            if (passes > backwardJumps + 1) {
+                return "the stack can grow without bound in a loop";
+            }
+            changed = false;
+            for (var addr = CT - 1; addr >= CB; addr--) {
+                var need = needAt(addr, needs);
+                if (need > needs[addr]) {
+                    if (need > maxStackNeed) {
+                        return "the instruction at address " + addr + " needs more than " + maxStackNeed
+                               + " words of stack";
+                    }
+                    needs[addr] = need;
+                    changed = true;
+                }
+            }
+            passes = passes + 1;
+        }
+        for (var addr = CB; addr < CT; addr++) {
+            stackNeeds[addr] = (int) needs[addr];
+        }
+        return null;
+    }
+
+    private long needAt(int addr, long[] needs) {
+        // Returns the need at the given code address, given the needs found so far at its successors.
+
+        var i = addr * decodedWidth;
+        var op = code[i];
+        long n = code[i + 2];
+        var d = code[i + 3];
+        if (op >= PRIMITIVEop) {
+            var effect = primitiveEffect(addr, op - PRIMITIVEop);
+            return need(Math.max(effect, 0), effect, needs[addr + 1]);
+        }
+        switch (TamVm.unfused(op)) {
+            case Machine.LOADop:
+                return need(n, n, needs[addr + 1]);
+            case Machine.LOADAop:
+            case Machine.LOADLop:
+                return need(1, 1, needs[addr + 1]);
+            case Machine.LOADIop:
+                return need(Math.max(n - 1, 0), n - 1, needs[addr + 1]);
+            case Machine.STOREop:
+                return need(0, -n, needs[addr + 1]);
+            case Machine.STOREIop:
+                return need(0, -n - 1, needs[addr + 1]);
+            case Machine.PUSHop:
+                return need(d, d, needs[addr + 1]);
+            case Machine.POPop:
+                return need(0, -d, needs[addr + 1]);
+            case Machine.JUMPop:
+                return need(0, 0, needs[d]);
+            case Machine.JUMPIFop:
+                return need(0, -1, Math.max(needs[d], needs[addr + 1]));
+            default:
+                // CALL, CALLI and RETURN have the space they need checked as they are executed, and HALT and NOP need
+                // none
+                return 0;
+        }
+    }
+
+    private static long need(long peak, long effect, long successorNeed) {
+        // Returns the need of an instruction that grows the stack by at most peak words while it executes, and by
+        // effect words in all, and whose successors need at most successorNeed words.
+
+        return Math.max(peak, effect + successorNeed);
+    }
+
+    private long primitiveEffect(int addr, int primitive) {
+        // Returns the number of words by which the primitive routine called at the given code address grows the stack,
+        // which is negative if it shrinks it.
+
+        switch (primitive) {
+            case Machine.idDisplacement:
+            case Machine.notDisplacement:
+            case Machine.succDisplacement:
+            case Machine.predDisplacement:
+            case Machine.negDisplacement:
+            case Machine.geteolDisplacement:
+            case Machine.puteolDisplacement:
+            case Machine.newDisplacement:
+                return 0;
+            case Machine.eqDisplacement:
+            case Machine.neDisplacement:
+                return -2L * comparandSize(addr);
+            case Machine.eolDisplacement:
+            case Machine.eofDisplacement:
+                return 1;
+            default:
+                // the binary operators, and the routines that take an address or a value to write or dispose
+                return -1;
+        }
+    }
+
+}
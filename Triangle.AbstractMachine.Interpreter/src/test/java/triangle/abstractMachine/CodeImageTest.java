@@ -0,0 +1,53 @@
+package triangle.abstractMachine;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class CodeImageTest {
+
+    // a program that pushes the given literal and halts, so that each literal gives a different program
+    private static CodeImage load(int literal) throws IOException {
+        ByteBuffer objectProgram = ByteBuffer.wrap(ObjectFormat.write(new int[] {
+                Machine.LOADLop, 0, 0, literal,
+                Machine.HALTop, 0, 0, 0 }));
+        return CodeImage.of(objectProgram, 0, 1024);
+    }
+
+    @BeforeEach public void clearCache() {
+        CodeImage.clearCache();
+    }
+
+    @Test public void testShared() throws IOException {
+        assertSame(load(0), load(0));
+    }
+
+    @Test public void testLayout() throws IOException {
+        CodeImage image = load(0);
+        ByteBuffer objectProgram = ByteBuffer.wrap(ObjectFormat.write(new int[] {
+                Machine.LOADLop, 0, 0, 0,
+                Machine.HALTop, 0, 0, 0 }));
+
+        assertNotSame(image, CodeImage.of(objectProgram, 0, 2048));
+    }
+
+    // once the cache is full, loading another program forgets the one least recently loaded
+    @Test public void testBounded() throws IOException {
+        CodeImage first = load(0);
+        CodeImage second = load(1);
+        for (int literal = 2; literal < CodeImage.cacheCapacity; literal++) {
+            load(literal);
+        }
+        assertSame(first, load(0));
+
+        load(CodeImage.cacheCapacity);
+        assertSame(first, load(0));
+        assertNotSame(second, load(1));
+    }
+
+}
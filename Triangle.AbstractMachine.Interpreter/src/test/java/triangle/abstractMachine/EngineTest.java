@@ -0,0 +1,245 @@
+package triangle.abstractMachine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import triangle.parsing.SyntaxError;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class EngineTest {
+
+    //@formatter:off
+    // every program but errors.tri, which does not compile
+    private static final String[] programs = {
+            "/adddeep.tri",
+            "/arrays.tri",
+            "/assignments.tri",
+            "/bank.tri",
+            "/bardemo.tri",
+            "/complexrecord.tri",
+            "/control.tri",
+            "/deepnest.tri",
+            "/directories.tri",
+            "/every.tri",
+            "/factorials.tri",
+            "/foldable.tri",
+            "/functions.tri",
+            "/hi-newcomment.tri",
+            "/hi-newcomment2.tri",
+            "/hi.tri",
+            "/hoistable.tri",
+            "/hullo.tri",
+            "/ifdemo.tri",
+            "/increment.tri",
+            "/intensefolding.tri",
+            "/intensehoisting.tri",
+            "/loopwhile.tri",
+            "/names.tri",
+            "/nesting.tri",
+            "/procedural.tri",
+            "/procedures.tri",
+            "/procparam.tri",
+            "/records.tri",
+            "/repeatuntil.tri",
+            "/repl.tri",
+            "/simpleadding.tri",
+            "/triangle.tri",
+            "/unaryops.tri",
+            "/varinvar.tri",
+            "/while.tri",
+            "/while-longloop.tri",};
+    //@formatter:on
+
+    // stops the programs that loop once their input runs out, so that each engine stops them at the same instruction
+    private static final long instructionLimit = 10_000_000;
+
+    // the output, status and instruction count of a run
+    private record Outcome(String output, TamVm.Status status, long instructionCount) { }
+
+    private static final Map<String, byte[]>  objectPrograms = new HashMap<>();
+    private static final Map<String, Outcome> expected       = new HashMap<>();
+
+    // the settings of BatchRunner before each test, which the tests of it change
+    private int     threads;
+    private int     sliceSize;
+    private long    maxInstructions;
+    private boolean verify;
+
+    @BeforeEach public void saveBatchRunnerSettings() {
+        threads = BatchRunner.threads;
+        sliceSize = BatchRunner.sliceSize;
+        maxInstructions = BatchRunner.maxInstructions;
+        verify = BatchRunner.verify;
+    }
+
+    @AfterEach public void restoreBatchRunnerSettings() {
+        BatchRunner.threads = threads;
+        BatchRunner.sliceSize = sliceSize;
+        BatchRunner.maxInstructions = maxInstructions;
+        BatchRunner.verify = verify;
+    }
+
+    private static synchronized byte[] objectProgram(String program) throws IOException, SyntaxError {
+        byte[] objectProgram = objectPrograms.get(program);
+        if (objectProgram == null) {
+            objectProgram = TestPrograms.compile(program);
+            objectPrograms.put(program, objectProgram);
+        }
+        return objectProgram;
+    }
+
+    private static Outcome run(String program, TamVm.Engine engine, boolean verified) throws IOException,
+            SyntaxError {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TamVm vm = TestPrograms.machine(output);
+        vm.setEngine(engine);
+        vm.setVerified(verified);
+        // promotes every routine and loop that is called or jumped back to twice, so that most of each run is tiered
+        vm.setTierThreshold(2);
+        vm.setInstructionLimit(instructionLimit);
+        vm.load(new ByteArrayInputStream(objectProgram(program)));
+        TamVm.Status status;
+        try {
+            status = vm.run();
+        } catch (ArrayIndexOutOfBoundsException s) {
+            // as with BatchRunner, since the machine does not check data addresses, and every.tri indexes an array by
+            // its input
+            status = TamVm.Status.FAILED_INVALID_INSTRUCTION;
+        }
+        return new Outcome(output.toString(), status, vm.instructionCount());
+    }
+
+    // the outcome of running the program on the switch engine, with every check
+    private static synchronized Outcome expected(String program) throws IOException, SyntaxError {
+        Outcome outcome = expected.get(program);
+        if (outcome == null) {
+            outcome = run(program, TamVm.Engine.SWITCH, false);
+            expected.put(program, outcome);
+        }
+        return outcome;
+    }
+
+    static Stream<Arguments> runs() {
+        List<Arguments> runs = new ArrayList<>();
+        for (String program : programs) {
+            for (TamVm.Engine engine : TamVm.Engine.values()) {
+                runs.add(Arguments.of(program, engine, false));
+                runs.add(Arguments.of(program, engine, true));
+            }
+        }
+        return runs.stream();
+    }
+
+    @MethodSource("runs")
+    @ParameterizedTest public void testEngine(String program, TamVm.Engine engine, boolean verified)
+            throws IOException, SyntaxError {
+        assertEquals(expected(program), run(program, engine, verified));
+    }
+
+    // runs the program in slices of the given number of instructions, on a data store that starts with a stack of a few
+    // words and grows, so that the engines stop part way through what they would otherwise run at once; a run that
+    // fails with an exception counts only the slices before it, so runs compared must have the same slices
+    private static Outcome runSliced(String program, TamVm.Engine engine, long slice) throws IOException, SyntaxError {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TamVm vm = TestPrograms.machine(output);
+        vm.setEngine(engine);
+        vm.setTierThreshold(2);
+        vm.setInstructionLimit(instructionLimit);
+        vm.setStackSize(4);
+        vm.setGrowDataStore(true, 1 << 20);
+        vm.load(new ByteArrayInputStream(objectProgram(program)));
+        TamVm.Status status;
+        try {
+            do {
+                status = vm.run(slice);
+            } while (status == TamVm.Status.RUNNING);
+        } catch (ArrayIndexOutOfBoundsException s) {
+            status = TamVm.Status.FAILED_INVALID_INSTRUCTION;
+        }
+        return new Outcome(output.toString(), status, vm.instructionCount());
+    }
+
+    static Stream<Arguments> slicedRuns() {
+        List<Arguments> runs = new ArrayList<>();
+        for (String program : programs) {
+            for (TamVm.Engine engine : TamVm.Engine.values()) {
+                runs.add(Arguments.of(program, engine));
+            }
+        }
+        return runs.stream();
+    }
+
+    @MethodSource("slicedRuns")
+    @ParameterizedTest public void testEngineSliced(String program, TamVm.Engine engine) throws IOException,
+            SyntaxError {
+        assertEquals(runSliced(program, TamVm.Engine.SWITCH, 97), runSliced(program, engine, 97));
+    }
+
+    // a batch of every program, run in slices small enough that the runs take turns on the threads, has the same
+    // results as running each program on its own
+    @ValueSource(booleans = { false, true })
+    @ParameterizedTest public void testBatchRunner(boolean verified, @TempDir Path directory)
+            throws IOException, SyntaxError, InterruptedException {
+        File input = directory.resolve("input").toFile();
+        Files.write(input.toPath(), TestPrograms.input);
+        List<BatchRunner.Run> runs = new ArrayList<>();
+        for (String program : programs) {
+            Path objectFile = directory.resolve(program.substring(1).replace(".tri", ".tam"));
+            Files.write(objectFile, objectProgram(program));
+            runs.add(new BatchRunner.Run(objectFile.toString(), input));
+        }
+
+        BatchRunner.threads = 4;
+        BatchRunner.sliceSize = 1000;
+        BatchRunner.maxInstructions = instructionLimit;
+        BatchRunner.verify = verified;
+        List<BatchRunner.Result> results = BatchRunner.runAll(runs);
+
+        assertEquals(runs.size(), results.size());
+        for (int k = 0; k < programs.length; k++) {
+            BatchRunner.Result result = results.get(k);
+            Outcome outcome = run(programs[k], TamVm.Engine.SWITCH, verified);
+            assertEquals(runs.get(k), result.run());
+            assertEquals(outcome.status(), result.status(), programs[k]);
+            assertEquals(outcome.output(), new String(result.output()), programs[k]);
+        }
+    }
+
+    // a run that fails other than by running its program, here on an object file name that is not a valid path, stops
+    // the batch rather than leaving it waiting for the run's result
+    @Test public void testBatchRunnerUnexpectedFailure(@TempDir Path directory) throws IOException, SyntaxError {
+        Path objectFile = directory.resolve("hullo.tam");
+        Files.write(objectFile, objectProgram("/hullo.tri"));
+        List<BatchRunner.Run> runs = List.of(new BatchRunner.Run(objectFile.toString(), null),
+                                             new BatchRunner.Run("bad\0name.tam", null));
+
+        BatchRunner.threads = 2;
+        IllegalStateException e = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> assertThrows(
+                IllegalStateException.class, () -> BatchRunner.runAll(runs)));
+        assertInstanceOf(InvalidPathException.class, e.getCause());
+    }
+
+}
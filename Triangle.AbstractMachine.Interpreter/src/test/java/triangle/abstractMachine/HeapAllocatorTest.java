@@ -0,0 +1,313 @@
+package triangle.abstractMachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeapAllocatorTest {
+
+    // returns a machine with a program loaded whose heap is stackSize + heapSize words from 0 up, or heapSize words
+    // below the stack when the data store grows
+    private static TamVm machine(int stackSize, int heapSize, boolean growDataStore) throws IOException {
+        TamVm vm = new TamVm();
+        vm.setStackSize(stackSize);
+        vm.setHeapSize(heapSize);
+        vm.setGrowDataStore(growDataStore, 1 << 16);
+        vm.load(ByteBuffer.wrap(ObjectFormat.write(new int[] { Machine.HALTop, 0, 0, 0 })));
+        return vm;
+    }
+
+    @Test public void testLayout() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        assertEquals(48, vm.HB);
+        assertEquals(48, vm.HT);
+
+        TamVm grown = machine(16, 32, true);
+        assertEquals(32, grown.SB);
+        assertEquals(32, grown.HB);
+        assertEquals(32, grown.HT);
+    }
+
+    @Test public void testAllocate() throws IOException {
+        TamVm vm = machine(16, 32, false);
+
+        assertEquals(44, vm.heap.allocate(4));
+        assertEquals(42, vm.heap.allocate(2));
+        assertEquals(42, vm.HT);
+        assertEquals(2, vm.heap.allocations);
+        assertEquals(6, vm.heap.liveWords);
+        assertEquals(6, vm.heap.maxHeapWords);
+    }
+
+    @Test public void testSplit() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        int a = vm.heap.allocate(4);
+        vm.heap.allocate(1);
+        vm.heap.dispose(a);
+        assertEquals(4, vm.heap.freeWords);
+
+        // the object is taken from the top of the free block, and the rest of the block stays free
+        assertEquals(a + 3, vm.heap.allocate(1));
+        assertEquals(3, vm.heap.freeWords);
+        assertEquals(a, vm.heap.allocate(3));
+        assertEquals(0, vm.heap.freeWords);
+        assertEquals(43, vm.HT);
+    }
+
+    @Test public void testBestFit() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        int a = vm.heap.allocate(3);
+        vm.heap.allocate(1);
+        int c = vm.heap.allocate(2);
+        vm.heap.allocate(1);
+        vm.heap.dispose(a);
+        vm.heap.dispose(c);
+
+        assertEquals(c, vm.heap.allocate(2));
+        assertEquals(3, vm.heap.freeWords);
+    }
+
+    // a block too large to have a list of its own is found among the others that share the last list
+    @Test public void testBestFitLarge() throws IOException {
+        TamVm vm = machine(16, 1024, false);
+        int a = vm.heap.allocate(100);
+        vm.heap.allocate(1);
+        int c = vm.heap.allocate(70);
+        vm.heap.allocate(1);
+        int e = vm.heap.allocate(80);
+        vm.heap.allocate(1);
+        vm.heap.dispose(a);
+        vm.heap.dispose(c);
+        vm.heap.dispose(e);
+
+        assertEquals(e + 5, vm.heap.allocate(75));
+        assertEquals(c, vm.heap.allocate(70));
+        assertEquals(a + 90, vm.heap.allocate(10));
+        assertEquals(95, vm.heap.freeWords);
+        assertEquals(2, vm.heap.freeBlocks);
+    }
+
+    // the smallest block is taken whichever side of the size at which blocks share a list they lie
+    @Test public void testBestFitSizeClasses() throws IOException {
+        TamVm vm = machine(16, 1024, false);
+        int small = HeapAllocator.sizeClasses - 1;
+        int a = vm.heap.allocate(small + 1);
+        vm.heap.allocate(1);
+        int c = vm.heap.allocate(small);
+        vm.heap.allocate(1);
+        vm.heap.dispose(a);
+        vm.heap.dispose(c);
+
+        assertEquals(c + small - 2, vm.heap.allocate(2));
+        assertEquals(a, vm.heap.allocate(small + 1));
+        assertEquals(c, vm.heap.allocate(small - 2));
+        assertEquals(0, vm.heap.freeBlocks);
+    }
+
+    @Test public void testCoalesceBothSides() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        int a = vm.heap.allocate(2);
+        int b = vm.heap.allocate(3);
+        int c = vm.heap.allocate(2);
+        vm.heap.allocate(1);
+        vm.heap.dispose(a);
+        vm.heap.dispose(c);
+        assertEquals(4, vm.heap.freeWords);
+
+        vm.heap.dispose(b);
+        assertEquals(7, vm.heap.freeWords);
+        assertEquals(3, vm.heap.disposals);
+        assertEquals(1, vm.heap.liveWords);
+
+        // the three objects make one block, which holds an object as large as all three
+        assertEquals(c, vm.heap.allocate(7));
+        assertEquals(0, vm.heap.freeWords);
+        assertEquals(40, vm.HT);
+    }
+
+    @Test public void testDisposeAtHeapTop() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        int a = vm.heap.allocate(2);
+        int b = vm.heap.allocate(3);
+
+        vm.heap.dispose(b);
+        assertEquals(a, vm.HT);
+        assertEquals(0, vm.heap.freeWords);
+
+        vm.heap.dispose(a);
+        assertEquals(vm.HB, vm.HT);
+        assertEquals(0, vm.heap.liveWords);
+    }
+
+    // a free block above the object at HT is given back with it
+    @Test public void testDisposeAtHeapTopCoalesced() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        int a = vm.heap.allocate(2);
+        int b = vm.heap.allocate(3);
+        vm.heap.dispose(a);
+        assertEquals(b, vm.HT);
+        assertEquals(2, vm.heap.freeWords);
+
+        vm.heap.dispose(b);
+        assertEquals(vm.HB, vm.HT);
+        assertEquals(0, vm.heap.freeWords);
+    }
+
+    @Test public void testDisposeAtHeapTopGrowing() throws IOException {
+        TamVm vm = machine(16, 32, true);
+        int a = vm.heap.allocate(4);
+        int b = vm.heap.allocate(2);
+        int c = vm.heap.allocate(3);
+        assertEquals(28, a);
+        assertEquals(26, b);
+        assertEquals(23, c);
+
+        vm.heap.dispose(b);
+        assertEquals(c, vm.HT);
+        vm.heap.dispose(c);
+        assertEquals(a, vm.HT);
+        assertEquals(0, vm.heap.freeWords);
+        vm.heap.dispose(a);
+        assertEquals(vm.HB, vm.HT);
+        assertEquals(32, vm.SB);
+    }
+
+    @Test public void testDisposeUnknownAddress() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        int a = vm.heap.allocate(4);
+        vm.heap.allocate(1);
+
+        // an address inside an object, one that was never allocated, and one outside the heap are all ignored
+        vm.heap.dispose(a + 1);
+        vm.heap.dispose(a - 3);
+        vm.heap.dispose(0);
+        assertEquals(0, vm.heap.disposals);
+        assertEquals(0, vm.heap.freeWords);
+        assertEquals(5, vm.heap.liveWords);
+        assertEquals(43, vm.HT);
+
+        // as is an object disposed of twice
+        vm.heap.dispose(a);
+        vm.heap.dispose(a);
+        assertEquals(1, vm.heap.disposals);
+        assertEquals(4, vm.heap.freeWords);
+    }
+
+    // objects allocated and disposed of at random always fill the heap together with the free blocks, and never
+    // overlap
+    @Test public void testRandom() throws IOException {
+        TamVm vm = machine(16, 1 << 16, false);
+        Random random = new Random(42);
+        List<int[]> live = new ArrayList<>();
+        for (int k = 0; k < 20000; k++) {
+            if (live.isEmpty() || random.nextBoolean()) {
+                int size = random.nextInt(4) == 0 ? 1 + random.nextInt(200) : 1 + random.nextInt(8);
+                int addr = vm.heap.allocate(size);
+                assertEquals(TamVm.running, vm.status);
+                for (int[] object : live) {
+                    assertTrue(addr + size <= object[0] || object[0] + object[1] <= addr, "overlap at " + addr);
+                }
+                live.add(new int[] { addr, size });
+            } else {
+                int[] object = live.remove(random.nextInt(live.size()));
+                vm.heap.dispose(object[0]);
+            }
+            assertEquals(vm.HB - vm.HT, vm.heap.liveWords + vm.heap.freeWords);
+            assertEquals(live.size(), vm.heap.liveObjects);
+        }
+        for (int[] object : live) {
+            vm.heap.dispose(object[0]);
+        }
+        assertEquals(vm.HB, vm.HT);
+        assertEquals(0, vm.heap.freeBlocks);
+    }
+
+    private static byte[] write(HeapAllocator heap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        heap.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    // a heap read from a snapshot takes the same free blocks for new objects as the heap it was written from
+    @Test public void testSnapshot() throws IOException {
+        TamVm vm = machine(16, 1024, false);
+        List<Integer> objects = new ArrayList<>();
+        for (int size : new int[] { 3, 1, 3, 1, 3, 1, 100, 1, 90, 1 }) {
+            objects.add(vm.heap.allocate(size));
+        }
+        for (int k = 0; k < objects.size(); k = k + 2) {
+            vm.heap.dispose(objects.get(k));
+        }
+        byte[] snapshot = write(vm.heap);
+
+        TamVm restored = machine(16, 1024, false);
+        restored.HT = vm.HT;
+        restored.heap.read(new DataInputStream(new ByteArrayInputStream(snapshot)));
+        assertEquals(vm.heap.freeWords, restored.heap.freeWords);
+        assertEquals(vm.heap.liveWords, restored.heap.liveWords);
+        for (int size : new int[] { 3, 3, 50, 50, 3 }) {
+            assertEquals(vm.heap.allocate(size), restored.heap.allocate(size));
+        }
+        assertEquals(vm.HT, restored.HT);
+    }
+
+    // a snapshot whose objects and free blocks leave a gap in the heap is rejected
+    @Test public void testSnapshotGap() throws IOException {
+        TamVm vm = machine(16, 1024, false);
+        int a = vm.heap.allocate(2);
+        vm.heap.allocate(2);
+        vm.heap.dispose(a);
+        byte[] snapshot = write(vm.heap);
+        // the size of the free block, after the count and address and size of the one object and the count of blocks
+        // and address of the one block
+        ByteBuffer.wrap(snapshot).putInt(20, 1);
+
+        TamVm restored = machine(16, 1024, false);
+        restored.HT = vm.HT;
+        IOException e = assertThrows(IOException.class, () -> restored.heap.read(
+                new DataInputStream(new ByteArrayInputStream(snapshot))));
+        assertEquals("Snapshot holds heap blocks that do not fill the heap", e.getMessage());
+    }
+
+    @Test public void testAllocateZeroSize() throws IOException {
+        TamVm vm = machine(16, 32, false);
+        vm.heap.allocate(2);
+
+        assertEquals(46, vm.heap.allocate(0));
+        assertEquals(46, vm.HT);
+        assertEquals(1, vm.heap.allocations);
+        assertEquals(2, vm.heap.allocatedWords);
+        assertEquals(TamVm.running, vm.status);
+    }
+
+    @Test public void testHeapFull() throws IOException {
+        TamVm vm = machine(4, 4, false);
+
+        assertEquals(0, vm.heap.allocate(8));
+        assertEquals(TamVm.running, vm.status);
+        assertEquals(0, vm.heap.allocate(1));
+        assertEquals(TamVm.failedDataStoreFull, vm.status);
+        assertEquals(1, vm.heap.allocations);
+    }
+
+    @Test public void testHeapFullGrowing() throws IOException {
+        TamVm vm = machine(4, 4, true);
+
+        assertEquals(0, vm.heap.allocate(4));
+        assertEquals(0, vm.heap.allocate(1));
+        assertEquals(TamVm.failedDataStoreFull, vm.status);
+    }
+
+}
@@ -0,0 +1,198 @@
+package triangle.abstractMachine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import triangle.parsing.SyntaxError;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SnapshotTest {
+
+    // the output, status and instruction count of a run
+    private record Outcome(byte[] output, TamVm.Status status, long instructionCount) { }
+
+    // returns a machine as TestPrograms sets one up, whose data store, if growing, starts with a stack of a few words
+    private static TamVm machine(ByteArrayOutputStream output, boolean growing) {
+        TamVm vm = TestPrograms.machine(output);
+        if (growing) {
+            vm.setStackSize(4);
+            vm.setGrowDataStore(true, 1 << 20);
+        }
+        return vm;
+    }
+
+    private static Outcome runUninterrupted(byte[] objectProgram, boolean growing) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TamVm vm = machine(output, growing);
+        vm.load(new ByteArrayInputStream(objectProgram));
+        TamVm.Status status = vm.run();
+        return new Outcome(output.toByteArray(), status, vm.instructionCount());
+    }
+
+    // runs the program for the given number of steps, saves a snapshot, restores it into a fresh machine and runs that
+    // to the end
+    private static Outcome runResumed(byte[] objectProgram, boolean growing, long steps) throws IOException {
+        ByteArrayOutputStream before = new ByteArrayOutputStream();
+        TamVm vm = machine(before, growing);
+        vm.load(new ByteArrayInputStream(objectProgram));
+        assertEquals(TamVm.Status.RUNNING, vm.run(steps));
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        vm.saveSnapshot(snapshot);
+
+        ByteArrayOutputStream after = new ByteArrayOutputStream();
+        TamVm resumed = machine(after, growing);
+        resumed.load(new ByteArrayInputStream(objectProgram));
+        resumed.restoreSnapshot(new ByteArrayInputStream(snapshot.toByteArray()));
+        assertEquals(steps, resumed.instructionCount());
+        TamVm.Status status = resumed.run();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(before.toByteArray());
+        output.write(after.toByteArray());
+        return new Outcome(output.toByteArray(), status, resumed.instructionCount());
+    }
+
+    private static void assertResumes(String program, boolean growing) throws IOException, SyntaxError {
+        byte[] objectProgram = TestPrograms.compile(program);
+        Outcome expected = runUninterrupted(objectProgram, growing);
+        long count = expected.instructionCount();
+        assertTrue(count > 1, program + " runs too briefly to be interrupted");
+
+        for (long steps : new long[] { 1, count / 3, count / 2, count - 1 }) {
+            Outcome actual = runResumed(objectProgram, growing, steps);
+            String where = program + " resumed after " + steps + " of " + count + " instructions";
+            assertEquals(new String(expected.output()), new String(actual.output()), where);
+            assertEquals(expected.status(), actual.status(), where);
+            assertEquals(count, actual.instructionCount(), where);
+        }
+    }
+
+    //@formatter:off
+    @ValueSource(strings = {
+            "/arrays.tri",
+            "/directories.tri",
+            "/factorials.tri",
+            "/hullo.tri",
+            "/increment.tri",
+            "/names.tri",
+            "/nesting.tri",
+            "/procparam.tri",
+            "/records.tri",
+            "/repeatuntil.tri",
+            "/while-longloop.tri",})
+    //@formatter:on
+    @ParameterizedTest public void testResume(String program) throws IOException, SyntaxError {
+        assertResumes(program, false);
+    }
+
+    // the data store grows during the run, before and after the snapshot
+    @ValueSource(strings = { "/adddeep.tri", "/factorials.tri", "/procparam.tri" })
+    @ParameterizedTest public void testResumeGrowing(String program) throws IOException, SyntaxError {
+        assertResumes(program, true);
+    }
+
+    private static byte[] snapshotAfter(byte[] objectProgram, long steps) throws IOException {
+        TamVm vm = TestPrograms.machine(new ByteArrayOutputStream());
+        vm.load(new ByteArrayInputStream(objectProgram));
+        vm.run(steps);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        vm.saveSnapshot(snapshot);
+        return snapshot.toByteArray();
+    }
+
+    // a machine whose restore failed is left ready to run the program from the beginning
+    private static void assertRunsFromStart(TamVm vm, ByteArrayOutputStream output, byte[] objectProgram)
+            throws IOException {
+        assertEquals(0, vm.instructionCount());
+        assertEquals(TamVm.Status.RUNNING, vm.status());
+        assertEquals(TamVm.Status.HALTED, vm.run());
+        assertEquals(new String(runUninterrupted(objectProgram, false).output()), output.toString());
+    }
+
+    @Test public void testDifferentProgram() throws IOException, SyntaxError {
+        byte[] snapshot = snapshotAfter(TestPrograms.compile("/factorials.tri"), 100);
+        byte[] otherProgram = TestPrograms.compile("/records.tri");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TamVm vm = TestPrograms.machine(output);
+        vm.load(new ByteArrayInputStream(otherProgram));
+        IOException e = assertThrows(IOException.class,
+                                     () -> vm.restoreSnapshot(new ByteArrayInputStream(snapshot)));
+        assertEquals("Snapshot is of a different object program", e.getMessage());
+        assertRunsFromStart(vm, output, otherProgram);
+    }
+
+    @Test public void testDifferentLayout() throws IOException, SyntaxError {
+        byte[] objectProgram = TestPrograms.compile("/factorials.tri");
+        byte[] snapshot = snapshotAfter(objectProgram, 100);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TamVm vm = TestPrograms.machine(output);
+        vm.setHeapSize(1024);
+        vm.load(new ByteArrayInputStream(objectProgram));
+        IOException e = assertThrows(IOException.class,
+                                     () -> vm.restoreSnapshot(new ByteArrayInputStream(snapshot)));
+        assertEquals("Snapshot is of a data store laid out differently, with SB 0 and HB 1024", e.getMessage());
+        assertRunsFromStart(vm, output, objectProgram);
+    }
+
+    // a data store that grows puts the heap below the stack, so SB differs from that of one that does not
+    @Test public void testDifferentLayoutGrowing() throws IOException, SyntaxError {
+        byte[] objectProgram = TestPrograms.compile("/factorials.tri");
+        byte[] snapshot = snapshotAfter(objectProgram, 100);
+
+        TamVm vm = TestPrograms.machine(new ByteArrayOutputStream());
+        vm.setGrowDataStore(true, 1 << 20);
+        vm.load(new ByteArrayInputStream(objectProgram));
+        IOException e = assertThrows(IOException.class,
+                                     () -> vm.restoreSnapshot(new ByteArrayInputStream(snapshot)));
+        assertEquals("Snapshot is of a data store laid out differently, with SB 0 and HB 1024", e.getMessage());
+    }
+
+    @Test public void testNotSnapshot() throws IOException, SyntaxError {
+        byte[] objectProgram = TestPrograms.compile("/factorials.tri");
+
+        TamVm vm = TestPrograms.machine(new ByteArrayOutputStream());
+        vm.load(new ByteArrayInputStream(objectProgram));
+        IOException e = assertThrows(IOException.class,
+                                     () -> vm.restoreSnapshot(new ByteArrayInputStream(objectProgram)));
+        assertEquals("Not a snapshot of version " + Snapshot.version, e.getMessage());
+    }
+
+    @Test public void testTruncated() throws IOException, SyntaxError {
+        byte[] objectProgram = TestPrograms.compile("/factorials.tri");
+        byte[] snapshot = snapshotAfter(objectProgram, 100);
+        byte[] truncated = Arrays.copyOf(snapshot, snapshot.length - 1);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TamVm vm = TestPrograms.machine(output);
+        vm.load(new ByteArrayInputStream(objectProgram));
+        IOException e = assertThrows(IOException.class,
+                                     () -> vm.restoreSnapshot(new ByteArrayInputStream(truncated)));
+        assertEquals("Snapshot is truncated", e.getMessage());
+        assertRunsFromStart(vm, output, objectProgram);
+    }
+
+    // a snapshot saved once the program has stopped restores to the same end
+    @Test public void testAfterHalt() throws IOException, SyntaxError {
+        byte[] objectProgram = TestPrograms.compile("/factorials.tri");
+        byte[] snapshot = snapshotAfter(objectProgram, Long.MAX_VALUE);
+
+        TamVm vm = TestPrograms.machine(new ByteArrayOutputStream());
+        vm.load(new ByteArrayInputStream(objectProgram));
+        vm.restoreSnapshot(new ByteArrayInputStream(snapshot));
+        assertEquals(TamVm.Status.HALTED, vm.status());
+        assertEquals(runUninterrupted(objectProgram, false).instructionCount(), vm.instructionCount());
+        assertArrayEquals(snapshot, snapshotAfter(objectProgram, Long.MAX_VALUE));
+    }
+
+}
@@ -0,0 +1,74 @@
+package triangle.abstractMachine;
+
+import triangle.analysis.Desugarer;
+import triangle.analysis.SemanticAnalyzer;
+import triangle.analysis.TypeChecker;
+import triangle.codegen.CodeGen;
+import triangle.codegen.ObjectWriter;
+import triangle.codegen.Optimizer;
+import triangle.parsing.Parser;
+import triangle.parsing.SyntaxError;
+import triangle.repr.Instruction;
+import triangle.repr.Statement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// the programs in programs/, which are on the classpath as resources, compiled as Compiler does with -folding and
+// -hoisting, and the input they are run with
+final class TestPrograms {
+
+    // enough input for every program that reads any to run to the end
+    static final byte[] input = "5\n3\nabc\n7\n2\n1\n4\n".getBytes(StandardCharsets.US_ASCII);
+
+    private TestPrograms() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static byte[] compile(String program) throws IOException, SyntaxError {
+        Statement tree;
+        try (InputStream in = TestPrograms.class.getResourceAsStream(program)) {
+            if (in == null) {
+                throw new IOException("No such program: " + program);
+            }
+            tree = new Parser(new ByteArrayInputStream(in.readAllBytes())).parseProgram();
+        }
+
+        SemanticAnalyzer semanticAnalyzer = new SemanticAnalyzer();
+        semanticAnalyzer.analyzeAndType(tree);
+        if (!semanticAnalyzer.getErrors().isEmpty()) {
+            throw new IllegalStateException("Semantic errors: " + semanticAnalyzer.getErrors());
+        }
+        Statement desugared = new Desugarer().desugar(tree);
+        TypeChecker typeChecker = new TypeChecker();
+        typeChecker.typecheck(desugared);
+        if (!typeChecker.getErrors().isEmpty()) {
+            throw new IllegalStateException("Type errors: " + typeChecker.getErrors());
+        }
+
+        Statement optimized = Optimizer.eliminateDeadCode(Optimizer.hoist(Optimizer.foldConstants(desugared)));
+        List<Instruction> ir = new CodeGen().generateInstructions(optimized);
+        List<Instruction.TAMInstruction> objectCode =
+                Optimizer.resolveLabels(Optimizer.combineInstructions(Optimizer.threadJumps(ir)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectWriter(new DataOutputStream(out)).write(objectCode);
+        return out.toByteArray();
+    }
+
+    // returns a machine that reads the test input from the start and writes to the given stream, as BatchRunner sets
+    // one up
+    static TamVm machine(ByteArrayOutputStream output) {
+        TamVm vm = new TamVm();
+        vm.setInput(new ByteArrayInputStream(input));
+        vm.setOutput(output);
+        vm.setPrompting(false, false);
+        return vm;
+    }
+
+}
@@ -0,0 +1,235 @@
+package triangle.abstractMachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VerifierTest {
+
+    // the fields of an instruction, as read by ObjectFormat
+    private static int[] instruction(int op, int r, int n, int d) {
+        return new int[] { op, r, n, d };
+    }
+
+    private static byte[] objectProgram(int[]... instructions) {
+        int[] fields = new int[instructions.length * ObjectFormat.fieldCount];
+        for (int addr = 0; addr < instructions.length; addr++) {
+            System.arraycopy(instructions[addr], 0, fields, addr * ObjectFormat.fieldCount, ObjectFormat.fieldCount);
+        }
+        return ObjectFormat.write(fields);
+    }
+
+    private static Verifier verify(int[]... instructions) throws IOException {
+        return CodeImage.of(ByteBuffer.wrap(objectProgram(instructions)), 0, 1024).verifier();
+    }
+
+    private static void assertFails(String problem, Verifier verifier) {
+        assertTrue(verifier.failure != null && verifier.failure.endsWith(problem), "failure: " + verifier.failure);
+    }
+
+    // INSTRUCTIONS
+
+    @Test public void testPasses() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.JUMPIFop, Machine.CBr, Machine.falseRep, 0),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertTrue(verifier.passed());
+        assertNull(verifier.failure);
+    }
+
+    @Test public void testJumpI() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADAop, Machine.CBr, 0, 2),
+                instruction(Machine.JUMPIop, 0, 0, 0),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("jumps to an address known only at run time", verifier);
+    }
+
+    @Test public void testJumpOutsideCodeStore() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.JUMPop, Machine.CBr, 0, 2),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("does not jump to an address in the code store", verifier);
+    }
+
+    @Test public void testJumpBeforeCodeStore() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.JUMPop, Machine.CBr, 0, -1),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("does not jump to an address in the code store", verifier);
+    }
+
+    @Test public void testJumpIfOutsideCodeStore() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.JUMPIFop, Machine.CBr, Machine.trueRep, 3),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("does not jump to an address in the code store", verifier);
+    }
+
+    // a jump relative to a register whose content is not known when loading cannot be checked
+    @Test public void testJumpRelativeToLB() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.JUMPop, Machine.LBr, 0, 1),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("does not jump to an address in the code store", verifier);
+    }
+
+    @Test public void testCallOutsideCodeStore() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.CALLop, Machine.CBr, Machine.SBr, 2),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("does not call a routine or primitive routine", verifier);
+    }
+
+    @Test public void testCallPrimitive() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.CALLop, Machine.PBr, Machine.SBr, Machine.puteolDisplacement),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertTrue(verifier.passed());
+    }
+
+    @Test public void testContinuesPastEnd() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1));
+
+        assertFails("continues past the end of the code store", verifier);
+    }
+
+    // EQUALITY
+
+    @Test public void testEqualityWithSize() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.CALLop, Machine.PBr, Machine.SBr, Machine.eqDisplacement),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertTrue(verifier.passed());
+        assertArrayEquals(new int[] { 3, 2, 1, 0, 0 }, verifier.stackNeeds);
+    }
+
+    @Test public void testEqualityWithoutSize() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.LOADop, Machine.SBr, 1, 0),
+                instruction(Machine.CALLop, Machine.PBr, Machine.SBr, Machine.neDisplacement),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("compares operands of unknown size", verifier);
+    }
+
+    @Test public void testEqualityAtStart() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.CALLop, Machine.PBr, Machine.SBr, Machine.eqDisplacement),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("compares operands of unknown size", verifier);
+    }
+
+    // an EQ that a jump reaches directly may be reached without the LOADL before it
+    @Test public void testEqualityJumpedTo() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.CALLop, Machine.PBr, Machine.SBr, Machine.eqDisplacement),
+                instruction(Machine.JUMPop, Machine.CBr, 0, 3));
+
+        assertFails("compares operands of unknown size", verifier);
+    }
+
+    // STACK NEEDS
+
+    @Test public void testStackNeedsStraightLine() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.LOADLop, 0, 0, 2),
+                instruction(Machine.CALLop, Machine.PBr, Machine.SBr, Machine.addDisplacement),
+                instruction(Machine.PUSHop, 0, 0, 3),
+                instruction(Machine.POPop, 0, 0, 4),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertTrue(verifier.passed());
+        assertArrayEquals(new int[] { 4, 3, 2, 3, 0, 0 }, verifier.stackNeeds);
+    }
+
+    // a stretch of code ends at a CALL, and a routine's need is that of its first instruction
+    @Test public void testStackNeedsWithCall() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 5),
+                instruction(Machine.CALLop, Machine.CBr, Machine.SBr, 4),
+                instruction(Machine.LOADLop, 0, 0, 7),
+                instruction(Machine.HALTop, 0, 0, 0),
+                instruction(Machine.LOADop, Machine.LBr, 1, -1),
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.RETURNop, 0, 1, 1));
+
+        assertTrue(verifier.passed());
+        assertArrayEquals(new int[] { 1, 0, 1, 0, 2, 1, 0 }, verifier.stackNeeds);
+    }
+
+    // the need before a loop that leaves the stack as it was is bounded by one pass through it
+    @Test public void testStackNeedsBalancedLoop() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.POPop, 0, 0, 1),
+                instruction(Machine.LOADLop, 0, 0, 0),
+                instruction(Machine.JUMPIFop, Machine.CBr, Machine.falseRep, 0),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertTrue(verifier.passed());
+        assertArrayEquals(new int[] { 1, 0, 1, 0, 0 }, verifier.stackNeeds);
+    }
+
+    @Test public void testStackGrowsInLoop() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.JUMPop, Machine.CBr, 0, 0));
+
+        assertFails("the stack can grow without bound in a loop", verifier);
+    }
+
+    @Test public void testStackGrowsInConditionalLoop() throws IOException {
+        Verifier verifier = verify(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.JUMPIFop, Machine.CBr, Machine.trueRep, 0),
+                instruction(Machine.HALTop, 0, 0, 0));
+
+        assertFails("the stack can grow without bound in a loop", verifier);
+    }
+
+    // LOADING
+
+    @Test public void testLoadRejectsFailedProgram() {
+        TamVm vm = new TamVm();
+        vm.setVerified(true);
+        byte[] objectProgram = objectProgram(
+                instruction(Machine.LOADLop, 0, 0, 1),
+                instruction(Machine.JUMPop, Machine.CBr, 0, 0));
+
+        IOException e = assertThrows(IOException.class, () -> vm.load(new ByteArrayInputStream(objectProgram)));
+        assertEquals("Object program failed verification: the stack can grow without bound in a loop", e.getMessage());
+    }
+
+}
@@ -18,9 +18,7 @@
 
 package triangle.abstractMachine;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 
 public class Instruction {
@@ -46,18 +44,6 @@ public class Instruction {
         this.operand = operand;
     }
 
-    public static Instruction read(DataInputStream input) throws IOException {
-        try {
-            var opCode = OpCode.values()[input.readInt()];
-            var register = Register.values()[input.readInt()];
-            var length = input.readInt();
-            var operand = input.readInt();
-            return new Instruction(opCode, register, length, operand);
-        } catch (EOFException s) {
-            return null;
-        }
-    }
-
     public void setOperand(int operand) {
         this.operand = operand;
     }
@@ -0,0 +1,164 @@
+/*
+ * @(#)ObjectFormat.java
+ *
+ * Revisions and updates (c) 2022-2023 Sandy Brownlee. alexander.brownlee@stir.ac.uk
+ *
+ * Original release:
+ *
+ * Copyright (C) 1999, 2003 D.A. Watt and D.F. Brown
+ * Dept. of Computing Science, University of Glasgow, Glasgow G12 8QQ Scotland
+ * and School of Computer and Math Sciences, The Robert Gordon University,
+ * St. Andrew Street, Aberdeen AB25 1HG, Scotland.
+ * All rights reserved.
+ *
+ * This software is provided free for educational use only. It may
+ * not be used for commercial purposes without the prior written permission
+ * of the authors.
+ */
+
+package triangle.abstractMachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ Reads and writes TAM object programs.
+ <p>
+ An object program starts with a header of the int magic number 0x54414D4F ("TAMO"), the short version of the format,
+ a short that is reserved and 0, and the int number of instructions. Each instruction follows as one long, holding from
+ the most significant end its opcode and register number in a byte each, its length in 16 bits and its operand in 32
+ bits, so that it takes 8 bytes rather than the 16 of the original format, in which each instruction is four ints.
+ Everything is big-endian, as written by DataOutputStream.
+ <p>
+ Object programs in the original format, which has no header, are still read: the first int of such a program is the
+ opcode of its first instruction, which is never the magic number. Either format is read from a buffer holding the
+ whole program, with no per-instruction I/O, and an object file can be mapped into memory by {@link #map} so that it is
+ read without being copied at all. Every instruction is checked as it is read, so that a program that is read is known
+ to have valid opcodes and register numbers.
+ */
+public final class ObjectFormat {
+
+    public static final int   magic   = 0x54414D4F;
+    public static final short version = 1;
+
+    private static final int headerSize = 12, instructionSize = 8, originalInstructionSize = 16;
+
+    // Each instruction is read into fieldCount consecutive ints, holding its opcode, register number, length and
+    // operand.
+    public static final int fieldCount = 4;
+
+    // the opcodes and registers, by number, kept rather than cloned by values() for every instruction read
+    private static final OpCode[]   opCodes   = OpCode.values();
+    private static final Register[] registers = Register.values();
+
+    private ObjectFormat() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static ByteBuffer map(String fileName) throws IOException {
+        // Maps the named object file into memory, read-only. The mapping stays valid after the file is closed.
+
+        try (var channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            var size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Object file is too large: " + size + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    public static int[] read(byte[] objectProgram) throws IOException {
+        // Returns the fields of the instructions of the given object program, in either format.
+
+        return read(ByteBuffer.wrap(objectProgram));
+    }
+
+    public static int[] read(ByteBuffer objectProgram) throws IOException {
+        // Returns the fields of the instructions of the object program between the position and limit of the given
+        // buffer, in either format. The buffer is not changed.
+
+        // a duplicate is big-endian, whatever the byte order of the given buffer
+        var buffer = objectProgram.duplicate();
+        var start = buffer.position();
+        var size = buffer.limit() - start;
+        if (size >= headerSize && buffer.getInt(start) == magic) {
+            var fileVersion = buffer.getShort(start + 4);
+            if (fileVersion != version) {
+                throw new IOException("Unsupported object format version " + fileVersion);
+            }
+            var count = buffer.getInt(start + 8);
+            if (count < 0 || count > (size - headerSize) / instructionSize) {
+                throw new IOException("Object program is truncated: " + count + " instructions declared, room for "
+                                      + (size - headerSize) / instructionSize);
+            }
+            var fields = new int[count * fieldCount];
+            for (var addr = 0; addr < count; addr++) {
+                var word = buffer.getLong(start + headerSize + addr * instructionSize);
+                var i = addr * fieldCount;
+                fields[i] = (int) (word >>> 56);
+                fields[i + 1] = (int) (word >>> 48) & 0xFF;
+                fields[i + 2] = (int) (word >>> 32) & 0xFFFF;
+                fields[i + 3] = (int) word;
+                check(fields, addr);
+            }
+            return fields;
+        }
+
+        // the original format, in which a partial instruction at the end is ignored
+        var count = size / originalInstructionSize;
+        var fields = new int[count * fieldCount];
+        buffer.asIntBuffer().get(fields);
+        for (var addr = 0; addr < count; addr++) {
+            check(fields, addr);
+        }
+        return fields;
+    }
+
+    private static void check(int[] fields, int addr) throws IOException {
+        // Signals failure if the opcode or register number of the instruction at the given address is not valid.
+
+        var i = addr * fieldCount;
+        if (fields[i] < 0 || fields[i] >= opCodes.length || fields[i + 1] < 0 || fields[i + 1] >= registers.length) {
+            throw new IOException("Invalid instruction at address " + addr);
+        }
+    }
+
+    public static Instruction[] readInstructions(ByteBuffer objectProgram) throws IOException {
+        // Returns the instructions of the object program in the given buffer, in either format.
+
+        var fields = read(objectProgram);
+        var code = new Instruction[fields.length / fieldCount];
+        for (var addr = 0; addr < code.length; addr++) {
+            var i = addr * fieldCount;
+            code[addr] = new Instruction(opCodes[fields[i]], registers[fields[i + 1]], fields[i + 2], fields[i + 3]);
+        }
+        return code;
+    }
+
+    public static byte[] write(int[] fields) {
+        // Returns the object program, in the current format, of the instructions whose fields are given as by read.
+
+        var count = fields.length / fieldCount;
+        var buffer = ByteBuffer.allocate(headerSize + count * instructionSize);
+        buffer.putInt(magic);
+        buffer.putShort(version);
+        buffer.putShort((short) 0);
+        buffer.putInt(count);
+        for (var addr = 0; addr < count; addr++) {
+            var i = addr * fieldCount;
+            var op = fields[i];
+            var r = fields[i + 1];
+            var n = fields[i + 2];
+            if (op < 0 || op > 0xFF || r < 0 || r > 0xFF || n < 0 || n > 0xFFFF) {
+                throw new IllegalArgumentException("Instruction at address " + addr
+                                                   + " does not fit the object format");
+            }
+            buffer.putLong((long) op << 56 | (long) r << 48 | (long) n << 32 | (fields[i + 3] & 0xFFFFFFFFL));
+        }
+        return buffer.array();
+    }
+
+}
@@ -0,0 +1,124 @@
+package triangle.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import triangle.analysis.Desugarer;
+import triangle.analysis.SemanticAnalyzer;
+import triangle.analysis.TypeChecker;
+import triangle.codegen.CodeGen;
+import triangle.codegen.Optimizer;
+import triangle.parsing.SyntaxError;
+import triangle.repr.Instruction;
+import triangle.repr.Statement;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Measures each phase of the compiler separately, on each of the programs.
+ <p>
+ The input of each phase is produced once per trial by running the phases before it, and each benchmark runs only its
+ own phase on that input. The analysis passes annotate the tree they are given in place, but annotating it again gives
+ the same result, so the same input serves every invocation. {@link #parse} includes the lexing measured on its own by
+ {@link triangle.parsing.LexerBenchmark}, and {@link #compile} runs every phase, as Compiler does with -folding and
+ -hoisting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class CompilerBenchmark {
+
+    @Param({"while-longloop.tri", "factorials.tri", "intensefolding.tri", "intensehoisting.tri"})
+    private String program;
+
+    private byte[]            source;
+    private Statement         parsed, analyzed, desugared, folded, hoisted, optimized;
+    private List<Instruction> ir, threaded, combined;
+
+    private List<Instruction.TAMInstruction> objectCode;
+
+    @Setup public void setUp() throws IOException, SyntaxError {
+        source = Programs.source(program);
+        parsed = Programs.parse(source);
+        analyzed = Programs.parse(source);
+        new SemanticAnalyzer().analyzeAndType(analyzed);
+        desugared = new Desugarer().desugar(analyzed);
+        folded = Optimizer.foldConstants(Programs.analyze(Programs.parse(source)));
+        hoisted = Optimizer.hoist(folded);
+        optimized = Optimizer.eliminateDeadCode(hoisted);
+        ir = new CodeGen().generateInstructions(optimized);
+        threaded = Optimizer.threadJumps(ir);
+        combined = Optimizer.combineInstructions(threaded);
+        objectCode = Optimizer.resolveLabels(combined);
+    }
+
+    @Benchmark public Statement parse() throws IOException, SyntaxError {
+        return Programs.parse(source);
+    }
+
+    @Benchmark public SemanticAnalyzer analyzeAndType() {
+        SemanticAnalyzer semanticAnalyzer = new SemanticAnalyzer();
+        semanticAnalyzer.analyzeAndType(parsed);
+        return semanticAnalyzer;
+    }
+
+    @Benchmark public Statement desugar() {
+        return new Desugarer().desugar(analyzed);
+    }
+
+    @Benchmark public TypeChecker typecheck() {
+        TypeChecker typeChecker = new TypeChecker();
+        typeChecker.typecheck(desugared);
+        return typeChecker;
+    }
+
+    @Benchmark public Statement foldConstants() {
+        return Optimizer.foldConstants(desugared);
+    }
+
+    @Benchmark public Statement hoist() {
+        return Optimizer.hoist(folded);
+    }
+
+    @Benchmark public Statement eliminateDeadCode() {
+        return Optimizer.eliminateDeadCode(hoisted);
+    }
+
+    @Benchmark public List<Instruction> generateInstructions() {
+        return new CodeGen().generateInstructions(optimized);
+    }
+
+    @Benchmark public List<Instruction> threadJumps() {
+        return Optimizer.threadJumps(ir);
+    }
+
+    @Benchmark public List<Instruction> combineInstructions() {
+        return Optimizer.combineInstructions(threaded);
+    }
+
+    @Benchmark public List<Instruction.TAMInstruction> resolveLabels() {
+        return Optimizer.resolveLabels(combined);
+    }
+
+    @Benchmark public byte[] writeObject() throws IOException {
+        return Programs.write(objectCode);
+    }
+
+    @Benchmark public byte[] compile() throws IOException, SyntaxError {
+        return Programs.compile(source);
+    }
+
+}
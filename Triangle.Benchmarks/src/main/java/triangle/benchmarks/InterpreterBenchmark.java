@@ -0,0 +1,74 @@
+package triangle.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import triangle.abstractMachine.TamVm;
+import triangle.parsing.SyntaxError;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Measures running each of the programs on each engine of the interpreter, from loading the object program to the end of
+ the run, with and without verifying it when it is loaded.
+ <p>
+ The programs are compiled once per trial, as Compiler does with -folding and -hoisting. Each run loads the program
+ afresh, which after the first load costs only a digest of the object program, since the decoded code is shared, and
+ is given the same input and has its output thrown away. A run that does not halt fails the benchmark, so that a
+ broken engine is not mistaken for a fast one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class InterpreterBenchmark {
+
+    // the input for the programs that read any, such as factorials.tri
+    private static final byte[] input = "5\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"while-longloop.tri", "factorials.tri", "intensefolding.tri", "intensehoisting.tri"})
+    private String program;
+
+    @Param({"SWITCH", "THREADED", "COMPILED", "TIERED"})
+    private TamVm.Engine engine;
+
+    @Param({"false", "true"})
+    private boolean verified;
+
+    private byte[] objectProgram;
+    private TamVm  vm;
+
+    @Setup public void setUp() throws IOException, SyntaxError {
+        objectProgram = Programs.compile(Programs.source(program));
+        vm = new TamVm();
+        vm.setEngine(engine);
+        vm.setVerified(verified);
+        vm.setOutput(OutputStream.nullOutputStream());
+        vm.setPrompting(false, false);
+    }
+
+    @Benchmark public TamVm.Status run() throws IOException {
+        vm.setInput(new ByteArrayInputStream(input));
+        vm.load(new ByteArrayInputStream(objectProgram));
+        TamVm.Status status = vm.run();
+        if (status != TamVm.Status.HALTED) {
+            throw new IllegalStateException(program + " did not halt: " + status);
+        }
+        return status;
+    }
+
+}
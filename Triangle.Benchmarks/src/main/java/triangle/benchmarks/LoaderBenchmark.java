@@ -0,0 +1,81 @@
+package triangle.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import triangle.abstractMachine.TamVm;
+import triangle.parsing.SyntaxError;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Measures loading each of the programs into the interpreter, both when the program has to be read and decoded and when
+ its decoded code is already shared from an earlier load, and loading it from an object file, mapped into memory as
+ TamVm.load does or read through a stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class LoaderBenchmark {
+
+    @Param({"while-longloop.tri", "factorials.tri", "intensefolding.tri", "intensehoisting.tri"})
+    private String program;
+
+    private byte[] objectProgram;
+    private Path   objectFile;
+    private TamVm  vm;
+
+    @Setup public void setUp() throws IOException, SyntaxError {
+        objectProgram = Programs.compile(Programs.source(program));
+        objectFile = Files.createTempFile("benchmark", ".tam");
+        Files.write(objectFile, objectProgram);
+        vm = new TamVm();
+    }
+
+    @TearDown public void tearDown() throws IOException {
+        Files.deleteIfExists(objectFile);
+    }
+
+    @Benchmark public TamVm decode() throws IOException {
+        TamVm.clearCodeCache();
+        vm.load(new ByteArrayInputStream(objectProgram));
+        return vm;
+    }
+
+    @Benchmark public TamVm loadShared() throws IOException {
+        vm.load(new ByteArrayInputStream(objectProgram));
+        return vm;
+    }
+
+    @Benchmark public TamVm decodeMappedFile() throws IOException {
+        TamVm.clearCodeCache();
+        vm.load(objectFile.toString());
+        return vm;
+    }
+
+    @Benchmark public TamVm decodeStreamedFile() throws IOException {
+        TamVm.clearCodeCache();
+        try (FileInputStream in = new FileInputStream(objectFile.toFile())) {
+            vm.load(in);
+        }
+        return vm;
+    }
+
+}
@@ -0,0 +1,79 @@
+package triangle.benchmarks;
+
+import triangle.analysis.Desugarer;
+import triangle.analysis.SemanticAnalyzer;
+import triangle.analysis.TypeChecker;
+import triangle.codegen.CodeGen;
+import triangle.codegen.ObjectWriter;
+import triangle.codegen.Optimizer;
+import triangle.parsing.Parser;
+import triangle.parsing.SyntaxError;
+import triangle.repr.Instruction;
+import triangle.repr.Statement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+// the programs in programs/, which are on the classpath as resources, and the steps of compiling them
+final class Programs {
+
+    private Programs() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static byte[] source(String program) throws IOException {
+        try (InputStream in = Programs.class.getResourceAsStream("/" + program)) {
+            if (in == null) {
+                throw new IOException("No such program: " + program);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    static Statement parse(byte[] source) throws IOException, SyntaxError {
+        return new Parser(new ByteArrayInputStream(source)).parseProgram();
+    }
+
+    // runs the analysis passes as Compiler does, failing if the program has errors
+    static Statement analyze(Statement program) {
+        SemanticAnalyzer semanticAnalyzer = new SemanticAnalyzer();
+        semanticAnalyzer.analyzeAndType(program);
+        if (!semanticAnalyzer.getErrors().isEmpty()) {
+            throw new IllegalStateException("Semantic errors: " + semanticAnalyzer.getErrors());
+        }
+
+        Statement desugared = new Desugarer().desugar(program);
+
+        TypeChecker typeChecker = new TypeChecker();
+        typeChecker.typecheck(desugared);
+        if (!typeChecker.getErrors().isEmpty()) {
+            throw new IllegalStateException("Type errors: " + typeChecker.getErrors());
+        }
+        return desugared;
+    }
+
+    // runs the tree optimizations as Compiler does with -folding and -hoisting
+    static Statement optimize(Statement program) {
+        return Optimizer.eliminateDeadCode(Optimizer.hoist(Optimizer.foldConstants(program)));
+    }
+
+    static List<Instruction.TAMInstruction> generate(Statement program) {
+        List<Instruction> ir = new CodeGen().generateInstructions(program);
+        return Optimizer.resolveLabels(Optimizer.combineInstructions(Optimizer.threadJumps(ir)));
+    }
+
+    static byte[] write(List<Instruction.TAMInstruction> objectCode) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectWriter(new DataOutputStream(out)).write(objectCode);
+        return out.toByteArray();
+    }
+
+    static byte[] compile(byte[] source) throws IOException, SyntaxError {
+        return write(generate(optimize(analyze(parse(source)))));
+    }
+
+}
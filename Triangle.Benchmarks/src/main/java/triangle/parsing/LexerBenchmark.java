@@ -0,0 +1,56 @@
+package triangle.parsing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Measures lexing each of the programs into tokens, without parsing them.
+ <p>
+ Lexer is package-private, so this benchmark lives in its package rather than with the others in triangle.benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class LexerBenchmark {
+
+    @Param({"while-longloop.tri", "factorials.tri", "intensefolding.tri", "intensehoisting.tri"})
+    private String program;
+
+    private byte[] source;
+
+    @Setup public void setUp() throws IOException {
+        try (InputStream in = LexerBenchmark.class.getResourceAsStream("/" + program)) {
+            if (in == null) {
+                throw new IOException("No such program: " + program);
+            }
+            source = in.readAllBytes();
+        }
+    }
+
+    @Benchmark public int lex() throws IOException {
+        Lexer lexer = new Lexer(new ByteArrayInputStream(source));
+        int tokens = 0;
+        while (lexer.nextToken().getKind() != Token.Kind.EOT) {
+            tokens++;
+        }
+        return tokens;
+    }
+
+}
@@ -1,5 +1,6 @@
 package triangle.codegen;
 
+import triangle.abstractMachine.ObjectFormat;
 import triangle.repr.Instruction;
 
 import java.io.DataOutputStream;
@@ -14,13 +15,18 @@ public final class ObjectWriter {
         this.outputStream = outputStream;
     }
 
+    // writes the instructions in the packed object format of ObjectFormat, in one write
     public void write(final List<Instruction.TAMInstruction> instructions) throws IOException {
+        int[] fields = new int[instructions.size() * ObjectFormat.fieldCount];
+        int index = 0;
         for (Instruction.TAMInstruction i : instructions) {
-            outputStream.writeInt(i.op());
-            outputStream.writeInt(i.r());
-            outputStream.writeInt(i.n());
-            outputStream.writeInt(i.d());
+            fields[index++] = i.op();
+            fields[index++] = i.r();
+            fields[index++] = i.n();
+            fields[index++] = i.d();
         }
+        outputStream.write(ObjectFormat.write(fields));
+        outputStream.flush();
     }
 
 }
@@ -0,0 +1,130 @@
+package triangle.abstractMachine;
+
+import org.junit.jupiter.api.Test;
+import triangle.codegen.ObjectWriter;
+import triangle.repr.Instruction.Address;
+import triangle.repr.Instruction.CALL;
+import triangle.repr.Instruction.HALT;
+import triangle.repr.Instruction.JUMPIF;
+import triangle.repr.Instruction.LOAD;
+import triangle.repr.Instruction.LOADL;
+import triangle.repr.Instruction.RETURN;
+import triangle.repr.Instruction.TAMInstruction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// in the package of ObjectFormat, so that the fields of the instructions it reads can be checked
+public class ObjectFormatTest {
+
+    private static final List<TAMInstruction> program = List.of(
+            new LOADL(-5),
+            new LOAD(2, new Address(Register.LB, -4)),
+            new CALL(Register.SB, new Address(Register.PB, Machine.putintDisplacement)),
+            new JUMPIF(Machine.trueRep, new Address(Register.CB, 0)),
+            new RETURN(1, 2),
+            new HALT());
+
+    private static byte[] write(List<TAMInstruction> instructions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectWriter(new DataOutputStream(out)).write(instructions);
+        return out.toByteArray();
+    }
+
+    // writes the instructions as the original object format did, four ints each with no header
+    private static byte[] writeOriginal(List<TAMInstruction> instructions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        for (TAMInstruction i : instructions) {
+            data.writeInt(i.op());
+            data.writeInt(i.r());
+            data.writeInt(i.n());
+            data.writeInt(i.d());
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertProgram(List<TAMInstruction> expected, Instruction[] actual) {
+        assertEquals(expected.size(), actual.length);
+        for (int addr = 0; addr < actual.length; addr++) {
+            TAMInstruction i = expected.get(addr);
+            assertEquals(i.op(), actual[addr].opCode.ordinal(), "opcode at " + addr);
+            assertEquals(i.r(), actual[addr].register.ordinal(), "register at " + addr);
+            assertEquals(i.n(), actual[addr].length, "length at " + addr);
+            assertEquals(i.d(), actual[addr].operand, "operand at " + addr);
+        }
+    }
+
+    @Test public void testRoundTrip() throws IOException {
+        byte[] objectProgram = write(program);
+
+        assertEquals(ObjectFormat.magic, ByteBuffer.wrap(objectProgram).getInt());
+        assertProgram(program, ObjectFormat.readInstructions(ByteBuffer.wrap(objectProgram)));
+    }
+
+    @Test public void testEmptyProgram() throws IOException {
+        assertEquals(0, ObjectFormat.readInstructions(ByteBuffer.wrap(write(List.of()))).length);
+    }
+
+    // a program in the original format, which has no header, is still read
+    @Test public void testOriginalFormat() throws IOException {
+        assertProgram(program, ObjectFormat.readInstructions(ByteBuffer.wrap(writeOriginal(program))));
+    }
+
+    // a partial instruction at the end of a program in the original format is ignored
+    @Test public void testOriginalFormatPartialInstruction() throws IOException {
+        byte[] objectProgram = writeOriginal(program);
+        byte[] partial = Arrays.copyOf(objectProgram, objectProgram.length - 4);
+
+        assertProgram(program.subList(0, program.size() - 1), ObjectFormat.readInstructions(ByteBuffer.wrap(partial)));
+    }
+
+    // a program read from the middle of a buffer is read from its position to its limit
+    @Test public void testBufferSlice() throws IOException {
+        byte[] objectProgram = write(program);
+        byte[] padded = new byte[objectProgram.length + 8];
+        System.arraycopy(objectProgram, 0, padded, 3, objectProgram.length);
+
+        assertProgram(program, ObjectFormat.readInstructions(ByteBuffer.wrap(padded, 3, objectProgram.length)));
+    }
+
+    // a file that does not start with the magic number is read as the original format, whose first int is an opcode
+    @Test public void testBadMagic() throws IOException {
+        byte[] objectProgram = write(program);
+        ByteBuffer.wrap(objectProgram).putInt(0, ObjectFormat.magic + 1);
+
+        assertThrows(IOException.class, () -> ObjectFormat.readInstructions(ByteBuffer.wrap(objectProgram)));
+    }
+
+    @Test public void testBadVersion() throws IOException {
+        byte[] objectProgram = write(program);
+        ByteBuffer.wrap(objectProgram).putShort(4, (short) (ObjectFormat.version + 1));
+
+        IOException e = assertThrows(IOException.class,
+                                     () -> ObjectFormat.readInstructions(ByteBuffer.wrap(objectProgram)));
+        assertEquals("Unsupported object format version " + (ObjectFormat.version + 1), e.getMessage());
+    }
+
+    @Test public void testTruncatedBody() throws IOException {
+        byte[] objectProgram = write(program);
+        byte[] truncated = Arrays.copyOf(objectProgram, objectProgram.length - 1);
+
+        assertThrows(IOException.class, () -> ObjectFormat.readInstructions(ByteBuffer.wrap(truncated)));
+    }
+
+    @Test public void testInvalidOpcode() throws IOException {
+        byte[] objectProgram = write(program);
+        // the opcode of the second instruction, the first byte after the 12-byte header and the first instruction
+        objectProgram[20] = (byte) OpCode.values().length;
+
+        assertThrows(IOException.class, () -> ObjectFormat.readInstructions(ByteBuffer.wrap(objectProgram)));
+    }
+
+}